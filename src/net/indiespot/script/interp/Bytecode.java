@@ -0,0 +1,84 @@
+package net.indiespot.script.interp;
+
+class Bytecode {
+	// decoded opcodes that have no JVM counterpart, placed above the JVM range
+
+	static final int ICONST = 0xCB;
+	static final int FCONST = 0xCC;
+	static final int ACONST = 0xCD;
+
+	static final int YIELD = 0xD0;
+	static final int SLEEP = 0xD1;
+	static final int SUSPEND = 0xD2;
+	static final int ECHO_INT = 0xD3;
+	static final int ECHO_FLOAT = 0xD4;
+	static final int ECHO_REF = 0xD5;
+	static final int SUSPEND_ON = 0xD6;
+	static final int AWAIT = 0xD7;
+
+	static final int SAFEPOINT = 0xD8;
+
+	// superinstructions, see Superinstructions
+	static final int ILOAD_ILOAD_IF_ICMPEQ = 0xE0;
+	static final int ILOAD_ILOAD_IF_ICMPNE = 0xE1;
+	static final int ILOAD_ILOAD_IF_ICMPLT = 0xE2;
+	static final int ILOAD_ILOAD_IF_ICMPGE = 0xE3;
+	static final int ILOAD_ILOAD_IF_ICMPGT = 0xE4;
+	static final int ILOAD_ILOAD_IF_ICMPLE = 0xE5;
+	static final int IADD_CONST = 0xE6;
+	static final int IINC_GOTO = 0xE7;
+	static final int ALOAD_INVOKEVIRTUAL = 0xE8;
+
+	// register tier, operands are slots relative to the frame's locals, see RegisterStack
+	static final int R_SP = 0x100;
+	static final int R_MOV = 0x101;
+	static final int R_CONST = 0x102;
+	static final int R_ACONST = 0x103;
+
+	static final int R_IADD = 0x110;
+	static final int R_ISUB = 0x111;
+	static final int R_IMUL = 0x112;
+	static final int R_IDIV = 0x113;
+	static final int R_IREM = 0x114;
+	static final int R_IAND = 0x115;
+	static final int R_IOR = 0x116;
+	static final int R_IXOR = 0x117;
+	static final int R_ISHL = 0x118;
+	static final int R_ISHR = 0x119;
+	static final int R_IUSHR = 0x11A;
+	static final int R_INEG = 0x11B;
+
+	static final int R_FADD = 0x120;
+	static final int R_FSUB = 0x121;
+	static final int R_FMUL = 0x122;
+	static final int R_FDIV = 0x123;
+	static final int R_FREM = 0x124;
+	static final int R_FNEG = 0x125;
+	static final int R_I2F = 0x126;
+	static final int R_F2I = 0x127;
+	static final int R_FCMPL = 0x128;
+	static final int R_FCMPG = 0x129;
+
+	static final int R_IFEQ = 0x130;
+	static final int R_IFNE = 0x131;
+	static final int R_IFLT = 0x132;
+	static final int R_IFGE = 0x133;
+	static final int R_IFGT = 0x134;
+	static final int R_IFLE = 0x135;
+	static final int R_IFNULL = 0x136;
+	static final int R_IFNONNULL = 0x137;
+	static final int R_IF_ACMPEQ = 0x138;
+	static final int R_IF_ACMPNE = 0x139;
+
+	static final int R_IRETURN = 0x140;
+	static final int R_FRETURN = 0x141;
+	static final int R_ARETURN = 0x142;
+
+	static final int R_IALOAD = 0x150;
+	static final int R_FALOAD = 0x151;
+	static final int R_AALOAD = 0x152;
+	static final int R_IASTORE = 0x153;
+	static final int R_FASTORE = 0x154;
+	static final int R_AASTORE = 0x155;
+	static final int R_ARRAYLENGTH = 0x156;
+}
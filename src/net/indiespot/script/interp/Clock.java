@@ -0,0 +1,36 @@
+package net.indiespot.script.interp;
+
+public interface Clock {
+	public long millis();
+
+	public default boolean isWallBased() {
+		// whether millis advance by themselves, so a scheduler can sleep until a deadline
+		return false;
+	}
+
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long millis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public boolean isWallBased() {
+			return true;
+		}
+	};
+
+	public static final Clock MONOTONIC = new Clock() {
+		private final long origin = System.nanoTime();
+
+		@Override
+		public long millis() {
+			return (System.nanoTime() - origin) / 1000000L;
+		}
+
+		@Override
+		public boolean isWallBased() {
+			return true;
+		}
+	};
+}
@@ -0,0 +1,209 @@
+package net.indiespot.script.interp;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import net.indiespot.script.interp.Interpreter.ExecState;
+
+public final class Continuation {
+	private static final int KIND_YIELD = 1;
+	private static final int KIND_SLEEP = 2;
+	private static final int KIND_SUSPEND = 3;
+	private static final int KIND_AWAIT = 4;
+
+	private final EnvMethod envMethod;
+	private final MethodHandle handle;
+	private final boolean resumable;
+	private Object[] args;
+
+	private boolean capturing;
+	private boolean restoring;
+	private int kind;
+	private int sleepMillis;
+	private Object waitKey;
+	private CompletableFuture<?> awaiting;
+
+	// saved frames, innermost first: operand stack, locals, resume point
+	private int[] intStack = new int[16];
+	private int intTop;
+	private Object[] refStack = new Object[4];
+	private int refTop;
+
+	static MethodHandle spread(MethodHandle handle) {
+		// one exact (Object[]) -> Object shape, the arguments are boxed once per fiber
+		return handle.asType(handle.type().generic()).asSpreader(Object[].class, handle.type().parameterCount());
+	}
+
+	Continuation(EnvMethod envMethod, MethodHandle handle, boolean resumable) {
+		this.envMethod = envMethod;
+		this.handle = handle;
+		this.resumable = resumable;
+	}
+
+	ExecState run(Fiber fiber) {
+		if(args == null)
+			args = this.takeArguments(fiber.top);
+		restoring = (intTop != 0);
+
+		Object got;
+		try {
+			got = (Object) handle.invokeExact(args);
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+
+		if(capturing) {
+			capturing = false;
+			switch (kind) {
+			case KIND_YIELD:
+				Scheduler.signalYield(fiber);
+				return ExecState.YIELDED;
+			case KIND_SLEEP:
+				Scheduler.signalSleep(fiber, sleepMillis);
+				return ExecState.SLEEPING;
+			case KIND_SUSPEND:
+				if(waitKey == null) {
+					Scheduler.signalSuspend(fiber);
+				}
+				else {
+					Object key = waitKey;
+					waitKey = null;
+					Scheduler.signalSuspend(fiber, key);
+				}
+				return ExecState.SUSPENDED;
+			case KIND_AWAIT:
+				CompletableFuture<?> future = awaiting;
+				awaiting = null;
+				Scheduler.signalAwait(fiber, future);
+				return ExecState.SUSPENDED;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+
+		ExecFrame root = fiber.top.leave();
+		switch (envMethod.returnType) {
+		case 'I':
+			if(got instanceof Boolean)
+				root.pushInt(((Boolean) got).booleanValue() ? 1 : 0);
+			else if(got instanceof Character)
+				root.pushInt(((Character) got).charValue());
+			else
+				root.pushInt(((Number) got).intValue());
+			break;
+		case 'F':
+			root.pushFloat(((Float) got).floatValue());
+			break;
+		case 'A':
+			root.pushRef(got);
+			break;
+		}
+		return ExecState.TERMINATED;
+	}
+
+	private Object[] takeArguments(ExecFrame entry) {
+		char[] paramTypes = envMethod.paramTypes;
+		Object[] values = new Object[paramTypes.length + (resumable ? 1 : 0)];
+		for(int i = 0; i < paramTypes.length; i++) {
+			if(paramTypes[i] == 'I')
+				values[i] = Integer.valueOf(entry.getInt(i));
+			else if(paramTypes[i] == 'F')
+				values[i] = Float.valueOf(entry.getFloat(i));
+			else
+				values[i] = entry.getRef(i);
+		}
+		if(resumable)
+			values[paramTypes.length] = this;
+		return values;
+	}
+
+	// protocol used by the resumable methods generated by ContinuationCompiler
+
+	public boolean isCapturing() {
+		return capturing;
+	}
+
+	public boolean isRestoring() {
+		return restoring;
+	}
+
+	public static void yield(Continuation c) {
+		c.capture(KIND_YIELD, 0);
+	}
+
+	public static void sleep(int millis, Continuation c) {
+		c.capture(KIND_SLEEP, millis);
+	}
+
+	public static void suspend(Continuation c) {
+		c.capture(KIND_SUSPEND, 0);
+	}
+
+	public static void suspend(Object key, Continuation c) {
+		if(key == null)
+			throw new NullPointerException("key");
+		c.capture(KIND_SUSPEND, 0);
+		c.waitKey = key;
+	}
+
+	public static void await(Object stage, Continuation c) {
+		// captures only while the stage is pending, the caller checks again after resuming
+		if(stage == null)
+			return;
+		CompletableFuture<?> future = ((CompletionStage<?>) stage).toCompletableFuture();
+		if(future.isDone())
+			return;
+		c.capture(KIND_AWAIT, 0);
+		c.awaiting = future;
+	}
+
+	public static void resumed(Continuation c) {
+		c.restoring = false;
+		// arguments are only read on the first invocation, drop them
+		for(int i = 0; i < c.envMethod.paramTypes.length; i++)
+			if(c.args[i] != null && c.envMethod.paramTypes[i] == 'A')
+				c.args[i] = null;
+	}
+
+	private void capture(int kind, int sleepMillis) {
+		this.capturing = true;
+		this.kind = kind;
+		this.sleepMillis = sleepMillis;
+	}
+
+	public static void pushInt(int v, Continuation c) {
+		if(c.intTop == c.intStack.length)
+			c.intStack = Arrays.copyOf(c.intStack, c.intTop * 2);
+		c.intStack[c.intTop++] = v;
+	}
+
+	public static void pushFloat(float v, Continuation c) {
+		pushInt(Float.floatToRawIntBits(v), c);
+	}
+
+	public static void pushRef(Object v, Continuation c) {
+		if(c.refTop == c.refStack.length)
+			c.refStack = Arrays.copyOf(c.refStack, c.refTop * 2);
+		c.refStack[c.refTop++] = v;
+	}
+
+	public static int popInt(Continuation c) {
+		return c.intStack[--c.intTop];
+	}
+
+	public static float popFloat(Continuation c) {
+		return Float.intBitsToFloat(popInt(c));
+	}
+
+	public static Object popRef(Continuation c) {
+		Object v = c.refStack[--c.refTop];
+		c.refStack[c.refTop] = null;
+		return v;
+	}
+}
@@ -0,0 +1,365 @@
+package net.indiespot.script.interp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+class ContinuationCompiler {
+	static final String CONTINUATION = Type.getInternalName(Continuation.class);
+	static final String SCHEDULER = Type.getInternalName(Scheduler.class);
+
+	private final Env env;
+	private final ClassLoader loader;
+
+	ContinuationCompiler(Env env, ClassLoader loader) {
+		this.env = env;
+		this.loader = loader;
+	}
+
+	static String resumableDesc(String desc) {
+		int end = desc.indexOf(')');
+		return desc.substring(0, end) + "L" + CONTINUATION + ";" + desc.substring(end);
+	}
+
+	// analysis
+
+	boolean canTransform(EnvMethod envMethod) {
+		MethodNode method = envMethod.methodNode;
+		if((method.access & Opcodes.ACC_STATIC) == 0 || (method.access & Opcodes.ACC_SYNCHRONIZED) != 0)
+			return false;
+		for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext())
+			if(node.getOpcode() == Opcodes.MONITORENTER || node.getOpcode() == Opcodes.JSR)
+				return false;
+
+		Frame[] frames = this.analyze(envMethod);
+		if(frames == null)
+			return false;
+
+		int pendingNew = 0;
+		for(int i = 0; i < frames.length; i++) {
+			AbstractInsnNode node = method.instructions.get(i);
+			if(node.getOpcode() == Opcodes.NEW)
+				pendingNew++;
+			else if(node.getOpcode() == Opcodes.INVOKESPECIAL && ((MethodInsnNode) node).name.equals("<init>"))
+				pendingNew--;
+			if(frames[i] == null || !this.isSuspensionPoint(node))
+				continue;
+			if(pendingNew != 0)
+				return false;
+			// longs, doubles and uninitialized objects cannot be saved
+			Frame frame = this.isAwaitPoint(node) ? frames[i + 1] : frames[i];
+			if(frame == null)
+				return false;
+			for(int k = 0; k < frame.getLocals(); k++)
+				if(((BasicValue) frame.getLocal(k)).getSize() == 2)
+					return false;
+			for(int k = 0; k < frame.getStackSize(); k++)
+				if(((BasicValue) frame.getStack(k)).getType() == null || ((BasicValue) frame.getStack(k)).getSize() == 2)
+					return false;
+		}
+		return true;
+	}
+
+	private Frame[] analyze(EnvMethod envMethod) {
+		ClassNode owner = envMethod.envClass.classNode;
+		SimpleVerifier verifier = new SimpleVerifier(Type.getObjectType(owner.name), owner.superName == null ? null : Type.getObjectType(owner.superName), false);
+		verifier.setClassLoader(loader);
+		try {
+			return new Analyzer(verifier).analyze(owner.name, envMethod.methodNode);
+		}
+		catch (AnalyzerException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private boolean isAwaitPoint(AbstractInsnNode node) {
+		int opcode = node.getOpcode();
+		return (opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE) && VirtualCallSite.isAsync(((MethodInsnNode) node).desc);
+	}
+
+	private boolean isSuspensionPoint(AbstractInsnNode node) {
+		if(this.isAwaitPoint(node))
+			return true;
+		if(node.getOpcode() != Opcodes.INVOKESTATIC)
+			return false;
+		MethodInsnNode invoke = (MethodInsnNode) node;
+		if(invoke.owner.equals(SCHEDULER))
+			return invoke.name.equals("yield") || invoke.name.equals("sleep") || invoke.name.equals("suspend");
+		EnvMethod callee = this.findMethod(invoke);
+		return callee != null && callee.suspendable;
+	}
+
+	private EnvMethod findMethod(MethodInsnNode invoke) {
+		EnvClass envClass = env.findClass(invoke.owner);
+		return (envClass == null) ? null : envClass.nameDesc2method.get(invoke.name + " " + invoke.desc);
+	}
+
+	// transformation
+
+	byte[] compile(EnvClass envClass) {
+		ClassNode copy = new ClassNode();
+		envClass.classNode.accept(copy);
+
+		// the ASM 5 tree exposes raw lists
+		@SuppressWarnings("unchecked")
+		List<MethodNode> methods = copy.methods;
+		for(EnvMethod envMethod : envClass.nameDesc2method.values())
+			if(envMethod.resumable)
+				methods.add(this.transform(envMethod));
+
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				try {
+					Class<?> c = Class.forName(type1.replace('/', '.'), false, loader);
+					Class<?> d = Class.forName(type2.replace('/', '.'), false, loader);
+					if(c.isAssignableFrom(d))
+						return type1;
+					if(d.isAssignableFrom(c))
+						return type2;
+					if(c.isInterface() || d.isInterface())
+						return "java/lang/Object";
+					do {
+						c = c.getSuperclass();
+					}
+					while (!c.isAssignableFrom(d));
+					return c.getName().replace('.', '/');
+				}
+				catch (ClassNotFoundException e) {
+					return "java/lang/Object";
+				}
+			}
+		};
+		copy.accept(writer);
+		return writer.toByteArray();
+	}
+
+	private MethodNode transform(EnvMethod envMethod) {
+		MethodNode source = envMethod.methodNode;
+		Frame[] frames = this.analyze(envMethod);
+		String desc = resumableDesc(source.desc);
+		MethodNode target = new MethodNode(source.access, source.name, desc, null, null);
+
+		// the continuation arrives after the parameters and is kept past the original locals
+		int paramSlot = envMethod.argSlots;
+		int contVar = source.maxLocals;
+
+		Map<LabelNode, LabelNode> labels = new HashMap<>();
+		for(AbstractInsnNode node = source.instructions.getFirst(); node != null; node = node.getNext())
+			if(node instanceof LabelNode)
+				labels.put((LabelNode) node, new LabelNode());
+
+		LabelNode start = new LabelNode();
+		List<LabelNode> restorePoints = new ArrayList<>();
+		InsnList restores = new InsnList();
+		InsnList body = new InsnList();
+
+		for(int i = 0; i < source.instructions.size(); i++) {
+			AbstractInsnNode node = source.instructions.get(i);
+			if(node instanceof FrameNode || node instanceof LineNumberNode)
+				continue;
+			if(frames[i] == null || !this.isSuspensionPoint(node)) {
+				body.add(node.clone(labels));
+				continue;
+			}
+
+			MethodInsnNode invoke = (MethodInsnNode) node;
+			LabelNode restore = new LabelNode();
+			restorePoints.add(restore);
+			int point = restorePoints.size() - 1;
+			LabelNode resume = new LabelNode();
+
+			if(this.isAwaitPoint(node)) {
+				// the host call runs once, the pending stage is checked again after every resume
+				Frame frame = frames[i + 1];
+				LabelNode check = new LabelNode();
+				body.add(node.clone(labels));
+				body.add(check);
+				body.add(new InsnNode(Opcodes.DUP));
+				body.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+				body.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "await", "(Ljava/lang/Object;L" + CONTINUATION + ";)V", false));
+				body.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+				body.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, CONTINUATION, "isCapturing", "()Z", false));
+				body.add(new JumpInsnNode(Opcodes.IFEQ, resume));
+				this.capture(body, frame, frame.getStackSize(), point, source, contVar);
+				body.add(resume);
+
+				this.restore(restores, restore, frame, frame.getStackSize(), source, contVar);
+				restores.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+				restores.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "resumed", "(L" + CONTINUATION + ";)V", false));
+				restores.add(new JumpInsnNode(Opcodes.GOTO, check));
+				continue;
+			}
+
+			Frame frame = frames[i];
+			Type[] args = Type.getArgumentTypes(invoke.desc);
+			Type ret = Type.getReturnType(invoke.desc);
+			int prefix = frame.getStackSize() - args.length;
+			LabelNode call = new LabelNode();
+
+			boolean yieldPoint = invoke.owner.equals(SCHEDULER);
+			body.add(call);
+			body.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+			if(yieldPoint) {
+				body.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, invoke.name, resumableDesc(invoke.desc), false));
+			}
+			else {
+				body.add(new MethodInsnNode(Opcodes.INVOKESTATIC, invoke.owner, invoke.name, resumableDesc(invoke.desc), false));
+				body.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+				body.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, CONTINUATION, "isCapturing", "()Z", false));
+				body.add(new JumpInsnNode(Opcodes.IFEQ, resume));
+				if(ret.getSize() == 1)
+					body.add(new InsnNode(Opcodes.POP));
+			}
+			this.capture(body, frame, prefix, point, source, contVar);
+			body.add(resume);
+
+			this.restore(restores, restore, frame, prefix, source, contVar);
+			if(yieldPoint) {
+				// the innermost frame: execution continues after the yield
+				restores.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+				restores.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "resumed", "(L" + CONTINUATION + ";)V", false));
+				restores.add(new JumpInsnNode(Opcodes.GOTO, resume));
+			}
+			else {
+				// re-enter the callee, which restores its own frame
+				for(Type arg : args)
+					this.pushDefault(restores, arg);
+				restores.add(new JumpInsnNode(Opcodes.GOTO, call));
+			}
+		}
+
+		InsnList prologue = new InsnList();
+		prologue.add(new VarInsnNode(Opcodes.ALOAD, paramSlot));
+		prologue.add(new VarInsnNode(Opcodes.ASTORE, contVar));
+		if(!restorePoints.isEmpty()) {
+			prologue.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+			prologue.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, CONTINUATION, "isRestoring", "()Z", false));
+			prologue.add(new JumpInsnNode(Opcodes.IFEQ, start));
+			prologue.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+			prologue.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "popInt", "(L" + CONTINUATION + ";)I", false));
+			prologue.add(new TableSwitchInsnNode(0, restorePoints.size() - 1, start, restorePoints.toArray(new LabelNode[0])));
+		}
+		prologue.add(start);
+
+		target.instructions.add(prologue);
+		target.instructions.add(body);
+		target.instructions.add(restores);
+
+		@SuppressWarnings("unchecked")
+		List<TryCatchBlockNode> blocks = target.tryCatchBlocks;
+		for(Object tcb : source.tryCatchBlocks) {
+			TryCatchBlockNode block = (TryCatchBlockNode) tcb;
+			blocks.add(new TryCatchBlockNode(labels.get(block.start), labels.get(block.end), labels.get(block.handler), block.type));
+		}
+
+		target.maxLocals = contVar + 1;
+		return target;
+	}
+
+	private void capture(InsnList body, Frame frame, int prefix, int point, MethodNode source, int contVar) {
+		// operand stack from the top, then the locals, then the resume point
+		for(int k = prefix - 1; k >= 0; k--)
+			this.save(body, ((BasicValue) frame.getStack(k)).getType(), contVar);
+		for(int k = 0; k < frame.getLocals() && k < source.maxLocals; k++) {
+			Type type = ((BasicValue) frame.getLocal(k)).getType();
+			if(type == null)
+				continue;
+			body.add(new VarInsnNode(type.getOpcode(Opcodes.ILOAD), k));
+			this.save(body, type, contVar);
+		}
+		body.add(new LdcInsnNode(Integer.valueOf(point)));
+		this.save(body, Type.INT_TYPE, contVar);
+		this.returnDefault(body, Type.getReturnType(source.desc));
+	}
+
+	private void restore(InsnList restores, LabelNode restore, Frame frame, int prefix, MethodNode source, int contVar) {
+		// the same values in reverse order
+		restores.add(restore);
+		for(int k = Math.min(frame.getLocals(), source.maxLocals) - 1; k >= 0; k--) {
+			Type type = ((BasicValue) frame.getLocal(k)).getType();
+			if(type == null)
+				continue;
+			this.load(restores, type, contVar);
+			restores.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), k));
+		}
+		for(int k = 0; k < prefix; k++)
+			this.load(restores, ((BasicValue) frame.getStack(k)).getType(), contVar);
+	}
+
+	private void save(InsnList list, Type type, int contVar) {
+		list.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+		if(type.getSort() == Type.FLOAT)
+			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "pushFloat", "(FL" + CONTINUATION + ";)V", false));
+		else if(type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY)
+			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "pushRef", "(Ljava/lang/Object;L" + CONTINUATION + ";)V", false));
+		else
+			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "pushInt", "(IL" + CONTINUATION + ";)V", false));
+	}
+
+	private void load(InsnList list, Type type, int contVar) {
+		list.add(new VarInsnNode(Opcodes.ALOAD, contVar));
+		if(type.getSort() == Type.FLOAT) {
+			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "popFloat", "(L" + CONTINUATION + ";)F", false));
+		}
+		else if(type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "popRef", "(L" + CONTINUATION + ";)Ljava/lang/Object;", false));
+			if(type.getSort() == Type.ARRAY)
+				list.add(new TypeInsnNode(Opcodes.CHECKCAST, type.getDescriptor()));
+			else if(!type.getInternalName().equals("null"))
+				list.add(new TypeInsnNode(Opcodes.CHECKCAST, type.getInternalName()));
+		}
+		else {
+			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC, CONTINUATION, "popInt", "(L" + CONTINUATION + ";)I", false));
+		}
+	}
+
+	private void pushDefault(InsnList list, Type type) {
+		switch (type.getSort()) {
+		case Type.FLOAT:
+			list.add(new InsnNode(Opcodes.FCONST_0));
+			break;
+		case Type.OBJECT:
+		case Type.ARRAY:
+			list.add(new InsnNode(Opcodes.ACONST_NULL));
+			break;
+		default:
+			list.add(new InsnNode(Opcodes.ICONST_0));
+			break;
+		}
+	}
+
+	private void returnDefault(InsnList list, Type type) {
+		if(type.getSort() == Type.VOID) {
+			list.add(new InsnNode(Opcodes.RETURN));
+			return;
+		}
+		this.pushDefault(list, type);
+		list.add(new InsnNode(type.getOpcode(Opcodes.IRETURN)));
+	}
+}
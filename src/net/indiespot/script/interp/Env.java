@@ -1,89 +1,286 @@
 package net.indiespot.script.interp;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.MethodInsnNode;
 
 public class Env {
 	private Map<String, EnvClass> name2class = new HashMap<>();
+	private List<EnvClass> classes = new ArrayList<>();
+	private ScriptClassLoader nativeLoader = new ScriptClassLoader(this);
+	private boolean nativeExecution;
+	private boolean compiledExecution;
+	private boolean trustedExecution;
+	private boolean registerExecution;
+	private boolean registerCode;
+	private PairProfile pairProfile;
+	private Superinstructions superinstructions = Superinstructions.ALL;
+	private boolean analyzed;
+	private boolean compiled;
 
 	public void register(ClassNode classNode) {
 		EnvClass envClass = new EnvClass(this, classNode);
+		if(trustedExecution)
+			envClass.verify();
+		registerCode |= registerExecution;
 		name2class.put(classNode.name.replace('.', '/'), envClass);
 		name2class.put(classNode.name.replace('/', '.'), envClass);
+		classes.add(envClass);
+		analyzed = false;
+		if(compiled)
+			this.resetCompilation();
 	}
 
 	public EnvClass findClass(String name) {
 		return name2class.get(name);
 	}
 
-	public void invokeStatic(ExecFrame frame, MethodInsnNode invoke) {
-		String args = invoke.desc.substring(invoke.desc.indexOf('(') + 1, invoke.desc.indexOf(')'));
-		char[] paramTypes = EnvClass.parseParams(args);
+	public synchronized void setNativeExecution(boolean enabled) {
+		// off by default: native calls run on the Java stack and cannot be sliced
+		this.nativeExecution = enabled;
+		this.unlinkMethods();
+	}
 
-		EnvClass envClass = frame.envMethod.envClass.env.findClass(invoke.owner);
-		EnvMethod envMethod = envClass.findMethod(invoke.name, invoke.desc);
+	public void setPairProfile(PairProfile profile) {
+		// counts the opcode pairs of classes registered from here on
+		this.pairProfile = profile;
+	}
 
-		ExecFrame invocation = new ExecFrame(frame, envMethod);
-		for(int i = paramTypes.length - 1; i >= 0; i--) {
-			if(paramTypes[i] == 'I')
-				invocation.setInt(i, frame.popInt());
-			else if(paramTypes[i] == 'F')
-				invocation.setFloat(i, frame.popFloat());
-			else if(paramTypes[i] == 'A')
-				invocation.setRef(i, frame.popRef());
-			else
-				throw new IllegalStateException("argTypes[" + i + "]=" + paramTypes[i]);
-		}
+	PairProfile pairProfile() {
+		return pairProfile;
+	}
+
+	public void setSuperinstructions(PairProfile profile, int pairs) {
+		// classes registered from here on only fuse the sequences made of the profile's most frequent pairs
+		this.superinstructions = Superinstructions.select(profile.top(pairs));
+	}
+
+	Superinstructions superinstructions() {
+		return superinstructions;
+	}
+
+	public void setTrustedExecution(boolean enabled) {
+		// fibers started from here on run untagged, which is only sound for verified code
+		if(!enabled && registerCode)
+			throw new IllegalStateException("register code only runs untagged");
+		if(enabled && !trustedExecution)
+			for(EnvClass envClass : classes)
+				envClass.verify();
+		this.trustedExecution = enabled;
+	}
+
+	boolean isTrusted() {
+		return trustedExecution;
+	}
+
+	public void setRegisterExecution(boolean enabled) {
+		// classes registered from here on are translated to the register tier
+		if(enabled && !trustedExecution)
+			throw new IllegalStateException("register execution requires trusted execution");
+		this.registerExecution = enabled;
+	}
+
+	boolean isRegisterExecution() {
+		return registerExecution;
+	}
+
+	public synchronized void setCompiledExecution(boolean enabled) {
+		if(compiledExecution == enabled)
+			return;
+		this.compiledExecution = enabled;
+		this.resetCompilation();
+	}
+
+	// native execution
+
+	synchronized MethodHandle nativeHandle(EnvMethod envMethod) {
+		if(!nativeExecution)
+			return null;
+		this.analyze();
+		if(envMethod.suspendable || envMethod.usesStatics)
+			return null;
+		if(compiledExecution)
+			this.prepareCompilation();
 
-		frame.subframe = invocation;
+		return this.findHandle(envMethod, envMethod.methodNode.desc);
 	}
 
-	public void invokeVirtual(ExecFrame frame, MethodInsnNode invoke) {
-		Class<?> clazz;
+	private MethodHandle findHandle(EnvMethod envMethod, String desc) {
 		try {
-			clazz = Class.forName(invoke.owner.replace('/', '.'));
+			Class<?> clazz = nativeLoader.loadClass(envMethod.envClass.classNode.name.replace('/', '.'));
+			for(Method method : clazz.getDeclaredMethods()) {
+				if(method.getName().equals(envMethod.methodNode.name) && Type.getMethodDescriptor(method).equals(desc)) {
+					method.setAccessible(true);
+					return MethodHandles.lookup().unreflect(method);
+				}
+			}
 		}
-		catch (ClassNotFoundException e1) {
-			throw new IllegalStateException(e1);
+		catch (ClassNotFoundException | IllegalAccessException e) {
+			throw new IllegalStateException(e);
 		}
+		throw new IllegalStateException("method: " + envMethod.envClass.classNode.name + "." + envMethod.methodNode.name + desc);
+	}
 
-		Method method = null;
-		for(Method mthd : clazz.getMethods())
-			if(mthd.getName().equals(invoke.name))
-				method = mthd;
-
-		Class<?>[] params = method.getParameterTypes();
-		Object[] values = new Object[params.length];
-		for(int i = params.length - 1; i >= 0; i--) {
-			if(params[i] == int.class)
-				values[i] = Integer.valueOf(frame.popInt());
-			else if(params[i] == float.class)
-				values[i] = Float.valueOf(frame.popFloat());
+	byte[] classBytes(EnvClass envClass) {
+		if(compiledExecution)
+			return new ContinuationCompiler(this, Env.class.getClassLoader()).compile(envClass);
+
+		ClassWriter writer = new ClassWriter(0);
+		envClass.classNode.accept(writer);
+		return writer.toByteArray();
+	}
+
+	// compiled execution
+
+	Continuation continuation(EnvMethod envMethod) {
+		// the handle is resolved once per method, every spawn only creates the continuation state
+		CompiledTarget target = envMethod.compiledTarget;
+		if(target == null)
+			target = this.linkContinuation(envMethod);
+		if(target.handle == null)
+			return null;
+		return new Continuation(envMethod, target.handle, target.resumable);
+	}
+
+	private synchronized CompiledTarget linkContinuation(EnvMethod envMethod) {
+		CompiledTarget target;
+		if(!compiledExecution) {
+			target = CompiledTarget.NONE;
+		}
+		else {
+			this.prepareCompilation();
+			if(envMethod.resumable)
+				target = new CompiledTarget(Continuation.spread(this.findHandle(envMethod, ContinuationCompiler.resumableDesc(envMethod.methodNode.desc))), true);
+			else if(!envMethod.suspendable && !envMethod.usesStatics && nativeExecution)
+				target = new CompiledTarget(Continuation.spread(this.findHandle(envMethod, envMethod.methodNode.desc)), false);
 			else
-				values[i] = frame.popRef();
+				target = CompiledTarget.NONE;
 		}
+		envMethod.compiledTarget = target;
+		return target;
+	}
 
-		Object target = frame.popRef();
-		if(target == null)
-			throw new NullPointerException();
+	private void prepareCompilation() {
+		// a suspendable method is resumable if it can be transformed and all its suspendable callees are too
+		this.analyze();
+		if(compiled)
+			return;
 
-		try {
-			Object got = method.invoke(target, values);
-
-			if(method.getReturnType() == int.class)
-				frame.pushInt(((Integer) got).intValue());
-			else if(method.getReturnType() == float.class)
-				frame.pushFloat(((Float) got).floatValue());
-			else if(method.getReturnType() != void.class)
-				frame.pushRef(got);
+		ContinuationCompiler compiler = new ContinuationCompiler(this, Env.class.getClassLoader());
+		for(EnvClass envClass : classes)
+			for(EnvMethod envMethod : envClass.nameDesc2method.values())
+				envMethod.resumable = envMethod.suspendable && !envMethod.usesStatics && compiler.canTransform(envMethod);
+
+		for(boolean changed = true; changed;) {
+			changed = false;
+			for(EnvClass envClass : classes) {
+				for(EnvMethod caller : envClass.nameDesc2method.values()) {
+					if(!caller.resumable)
+						continue;
+					for(Object constant : caller.constants) {
+						EnvMethod callee = this.callee(constant);
+						if(callee != null && callee.suspendable && !callee.resumable) {
+							caller.resumable = false;
+							changed = true;
+							break;
+						}
+					}
+				}
+			}
 		}
-		catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-			throw new IllegalStateException(e);
+
+		compiled = true;
+	}
+
+	private void resetCompilation() {
+		// classes defined so far were generated from the old flags
+		compiled = false;
+		nativeLoader = new ScriptClassLoader(this);
+		this.unlinkMethods();
+	}
+
+	private void unlinkMethods() {
+		// links made under the old flags are made again on their next use
+		for(EnvClass envClass : classes)
+			for(EnvMethod envMethod : envClass.nameDesc2method.values())
+				envMethod.unlink();
+	}
+
+	static final class CompiledTarget {
+		static final CompiledTarget NONE = new CompiledTarget(null, false);
+
+		// null if the method is interpreted
+		final MethodHandle handle;
+		final boolean resumable;
+
+		CompiledTarget(MethodHandle handle, boolean resumable) {
+			this.handle = handle;
+			this.resumable = resumable;
 		}
 	}
-}
\ No newline at end of file
+
+	private EnvMethod callee(Object constant) {
+		if(!(constant instanceof StaticCallSite))
+			return null;
+		StaticCallSite site = (StaticCallSite) constant;
+		EnvClass owner = this.findClass(site.owner);
+		if(owner == null)
+			return null;
+		return owner.nameDesc2method.get(site.name + " " + site.desc);
+	}
+
+	private void analyze() {
+		// a method is suspendable if it can transitively reach Scheduler.yield/sleep/suspend,
+		// it uses statics if it can reach the static fields of a registered class, which only the interpreter holds
+		if(analyzed)
+			return;
+
+		Map<EnvMethod, List<EnvMethod>> callers = new HashMap<>();
+		List<EnvMethod> worklist = new ArrayList<>();
+		for(EnvClass envClass : classes) {
+			for(EnvMethod caller : envClass.nameDesc2method.values()) {
+				caller.suspendable = caller.suspends;
+				caller.usesStatics = caller.methodNode.name.equals("<clinit>");
+				for(Object constant : caller.constants)
+					if(constant instanceof FieldSite && ((FieldSite) constant).isScriptStatic())
+						caller.usesStatics = true;
+				if(caller.suspendable || caller.usesStatics)
+					worklist.add(caller);
+
+				for(Object constant : caller.constants) {
+					EnvMethod callee = this.callee(constant);
+					if(callee == null)
+						continue;
+					List<EnvMethod> list = callers.get(callee);
+					if(list == null)
+						callers.put(callee, list = new ArrayList<>());
+					list.add(caller);
+				}
+			}
+		}
+
+		while (!worklist.isEmpty()) {
+			EnvMethod callee = worklist.remove(worklist.size() - 1);
+			List<EnvMethod> list = callers.get(callee);
+			if(list == null)
+				continue;
+			for(EnvMethod caller : list) {
+				if((callee.suspendable && !caller.suspendable) || (callee.usesStatics && !caller.usesStatics)) {
+					caller.suspendable |= callee.suspendable;
+					caller.usesStatics |= callee.usesStatics;
+					worklist.add(caller);
+				}
+			}
+		}
+
+		analyzed = true;
+	}
+}
@@ -5,13 +5,25 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicVerifier;
 
 public class EnvClass {
 	Env env;
 	ClassNode classNode;
 	Map<String, EnvMethod> nameDesc2method;
+	SlicePolicy slicePolicy = SlicePolicy.DEFAULT;
+
+	// static fields, ints and floats as bits in staticData, references in staticRefs
+	Map<String, Integer> staticSlots;
+	int[] staticData;
+	Object[] staticRefs;
+	private volatile boolean initialized;
 
 	public EnvClass(Env env, ClassNode classNode) {
 		this.env = env;
@@ -22,6 +34,64 @@ public class EnvClass {
 			MethodNode methodNode = (MethodNode) m;
 			nameDesc2method.put(methodNode.name + " " + methodNode.desc, new EnvMethod(this, methodNode));
 		}
+
+		this.staticSlots = new HashMap<>();
+		for(Object f : classNode.fields) {
+			FieldNode fieldNode = (FieldNode) f;
+			if((fieldNode.access & Opcodes.ACC_STATIC) != 0)
+				staticSlots.put(fieldNode.name, Integer.valueOf(staticSlots.size()));
+		}
+		this.staticData = new int[staticSlots.size()];
+		this.staticRefs = new Object[staticSlots.size()];
+		for(Object f : classNode.fields) {
+			FieldNode fieldNode = (FieldNode) f;
+			if((fieldNode.access & Opcodes.ACC_STATIC) != 0 && fieldNode.value != null)
+				this.setConstant(staticSlots.get(fieldNode.name).intValue(), fieldNode.value);
+		}
+	}
+
+	private void setConstant(int slot, Object value) {
+		// the ConstantValue of a static field, javac inlines most reads of it
+		if(value instanceof Integer)
+			staticData[slot] = ((Integer) value).intValue();
+		else if(value instanceof Float)
+			staticData[slot] = Float.floatToRawIntBits(((Float) value).floatValue());
+		else if(value instanceof String)
+			staticRefs[slot] = value;
+	}
+
+	int staticSlot(String name) {
+		Integer slot = staticSlots.get(name);
+		return (slot == null) ? -1 : slot.intValue();
+	}
+
+	synchronized void initialize() {
+		// <clinit> runs interpreted on first access to a static, it cannot see the statics of the native class
+		if(initialized)
+			return;
+		initialized = true;
+		EnvMethod clinit = nameDesc2method.get("<clinit> ()V");
+		if(clinit != null)
+			clinit.invokeNow();
+	}
+
+	public void setSlicePolicy(SlicePolicy policy) {
+		if(policy == null)
+			throw new NullPointerException();
+		this.slicePolicy = policy;
+	}
+
+	void verify() {
+		// proves the kind of every local and stack slot, so frames can drop their type tags
+		for(EnvMethod envMethod : nameDesc2method.values()) {
+			MethodNode methodNode = envMethod.methodNode;
+			try {
+				new Analyzer(new BasicVerifier()).analyze(classNode.name, methodNode);
+			}
+			catch (AnalyzerException e) {
+				throw new IllegalStateException("unverifiable: " + classNode.name + "." + methodNode.name + methodNode.desc, e);
+			}
+		}
 	}
 
 	public EnvMethod findMethod(String name, String desc) {
@@ -31,38 +101,63 @@ public class EnvClass {
 		return envMethod;
 	}
 
-	private final static Map<String, char[]> args2types = new HashMap<>();
-
-	public static synchronized char[] parseParams(String args) {
-		char[] types = args2types.get(args);
-		if(types == null)
-			args2types.put(args, types = parseArgsImpl(args));
-		return types;
-	}
-
-	private static char[] parseArgsImpl(String args) {
+	public static char[] parseParams(String args) {
 		char[] types = new char[8];
 
 		int len = 0;
 		for(int i = 0; i < args.length(); i++) {
-			if(args.charAt(i) == 'I') {
+			if(len == types.length)
+				types = Arrays.copyOf(types, len * 2);
+
+			switch (args.charAt(i)) {
+			case 'Z':
+			case 'B':
+			case 'C':
+			case 'S':
+			case 'I':
 				types[len++] = 'I';
-			}
-			else if(args.charAt(i) == 'F') {
+				break;
+			case 'F':
 				types[len++] = 'F';
-			}
-			else if(args.charAt(i) == 'L') {
+				break;
+			case '[':
+				types[len++] = 'A';
+				while (args.charAt(i) == '[')
+					i++;
+				if(args.charAt(i) == 'L')
+					while (args.charAt(++i) != ';')
+						continue;
+				break;
+			case 'L':
 				types[len++] = 'A';
 				while (args.charAt(++i) != ';')
 					continue;
-			}
-			else if(args.charAt(i) == '[') {
-				continue;
-			}
-			else {
-				throw new IllegalStateException();
+				break;
+			default:
+				throw new IllegalStateException("unsupported parameter type: " + args);
 			}
 		}
 		return Arrays.copyOf(types, len);
 	}
+
+	public static char parseReturn(String ret) {
+		switch (ret.charAt(0)) {
+		case 'V':
+			return 'V';
+		case 'F':
+			return 'F';
+		case 'L':
+		case '[':
+			return 'A';
+		case 'Z':
+		case 'B':
+		case 'C':
+		case 'S':
+		case 'I':
+			return 'I';
+		default:
+			// long and double results are not supported by the frames
+			return ret.charAt(0);
+		}
+	}
 }
@@ -1,50 +1,954 @@
 package net.indiespot.script.interp;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
 import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicVerifier;
+import org.objectweb.asm.tree.analysis.Frame;
 
 public class EnvMethod {
 	EnvClass envClass;
 	MethodNode methodNode;
-	InsnList instructions;
+	int[] code;
+	Object[] constants;
+	int maxLocals;
+	int maxStack;
+	char[] paramTypes;
+	char returnType;
+	int argSlots;
+	boolean suspends;
+	boolean suspendable;
+	boolean resumable;
+	boolean usesStatics;
+	volatile Env.CompiledTarget compiledTarget;
+	private volatile InvokeTarget invokeTarget;
 
 	public EnvMethod(EnvClass envClass, MethodNode methodNode) {
 		this.envClass = envClass;
 		this.methodNode = methodNode;
-		instructions = (methodNode == null) ? null : methodNode.instructions;
 
-		labelOffsetCache = new int[instructions == null ? 0 : instructions.size()];
-		Arrays.fill(labelOffsetCache, -1);
+		if(methodNode != null) {
+			maxLocals = methodNode.maxLocals;
+			maxStack = methodNode.maxStack;
+			paramTypes = EnvClass.parseParams(methodNode.desc.substring(1, methodNode.desc.indexOf(')')));
+			argSlots = paramTypes.length;
+			returnType = EnvClass.parseReturn(methodNode.desc.substring(methodNode.desc.indexOf(')') + 1));
+			this.decode(methodNode.instructions);
+		}
 	}
 
 	public ExecFrame prepare(TerminationHandler handler) {
-		return new ExecFrame(new ExecFrame(handler), this);
+		ExecFrame frame = new ExecFrame(new ExecFrame(handler, !envClass.env.isTrusted()), this);
+		frame.fiber.continuation = envClass.env.continuation(this);
+		frame.fiber.slicePolicy = envClass.slicePolicy;
+		return frame;
 	}
 
 	public ExecFrame call(ExecFrame callsite) {
 		return new ExecFrame(callsite, this);
 	}
 
+	// synchronous invocation on the caller's thread, bypassing the scheduler
+
+	@SuppressWarnings("unchecked")
+	public <T> T invokeNow(Object... args) {
+		// host code may call from several threads, the link is published as a whole
+		InvokeTarget target = invokeTarget;
+		if(target == null)
+			invokeTarget = target = this.linkInvoke();
+
+		if(target.handle != null) {
+			if(args.length != target.types.length)
+				throw new IllegalArgumentException("expected " + target.types.length + " arguments, got " + args.length);
+			try {
+				return (T) (Object) target.handle.invokeExact(coerce(target.types, args));
+			}
+			catch (RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		// a method that may suspend is interpreted on a private fiber, which throws if it actually does
+		ExecFrame frame = new ExecFrame(new ExecFrame(null, !envClass.env.isTrusted()), this);
+		frame.fiber.synchronous = true;
+		FiberFuture.setArguments(frame, this, args);
+		while (Interpreter.run(frame.fiber, Integer.MAX_VALUE) == Interpreter.ExecState.RUNNING)
+			continue;
+		return (T) FiberFuture.popResult(frame.fiber.root, this);
+	}
+
+	void unlink() {
+		compiledTarget = null;
+		invokeTarget = null;
+		for(Object constant : constants)
+			if(constant instanceof StaticCallSite)
+				((StaticCallSite) constant).unlink();
+	}
+
+	private InvokeTarget linkInvoke() {
+		// methods that cannot reach a yield run natively, like they do when called from a script
+		MethodHandle handle = envClass.env.nativeHandle(this);
+		if(handle == null)
+			return new InvokeTarget(null, null);
+
+		Type[] types = Type.getArgumentTypes(methodNode.desc);
+		char[] kinds = new char[types.length];
+		for(int i = 0; i < types.length; i++)
+			kinds[i] = types[i].getDescriptor().charAt(0);
+		return new InvokeTarget(handle.asType(handle.type().generic()).asSpreader(Object[].class, types.length), kinds);
+	}
+
+	private static final class InvokeTarget {
+		// a null handle interprets the method
+		final MethodHandle handle;
+		final char[] types;
+
+		InvokeTarget(MethodHandle handle, char[] types) {
+			this.handle = handle;
+			this.types = types;
+		}
+	}
+
+	private static Object[] coerce(char[] types, Object[] args) {
+		// accept the same boxes as spawn: any Number, Boolean or Character for the integral types
+		Object[] coerced = args;
+		for(int i = 0; i < types.length; i++) {
+			Object arg = args[i];
+			Object value;
+			switch (types[i]) {
+			case 'Z':
+				value = (arg instanceof Boolean) ? arg : Boolean.valueOf(intValue(arg) != 0);
+				break;
+			case 'B':
+				value = (arg instanceof Byte) ? arg : Byte.valueOf((byte) intValue(arg));
+				break;
+			case 'C':
+				value = (arg instanceof Character) ? arg : Character.valueOf((char) intValue(arg));
+				break;
+			case 'S':
+				value = (arg instanceof Short) ? arg : Short.valueOf((short) intValue(arg));
+				break;
+			case 'I':
+				value = (arg instanceof Integer) ? arg : Integer.valueOf(intValue(arg));
+				break;
+			case 'F':
+				value = (arg instanceof Float) ? arg : Float.valueOf(((Number) arg).floatValue());
+				break;
+			default:
+				value = arg;
+				break;
+			}
+			if(value != arg) {
+				if(coerced == args)
+					coerced = args.clone();
+				coerced[i] = value;
+			}
+		}
+		return coerced;
+	}
+
+	private static int intValue(Object arg) {
+		if(arg instanceof Boolean)
+			return ((Boolean) arg).booleanValue() ? 1 : 0;
+		if(arg instanceof Character)
+			return ((Character) arg).charValue();
+		return ((Number) arg).intValue();
+	}
+
 	//
 
-	private int[] labelOffsetCache;
+	private void decode(InsnList instructions) {
+		int[] out = new int[instructions.size() * 3];
+		List<Object> pool = new ArrayList<>();
+		Map<LabelNode, Integer> labelOffsets = new HashMap<>();
+		List<LabelNode> jumpLabels = new ArrayList<>();
+		List<Integer> jumpOperands = new ArrayList<>();
+
+		Set<LabelNode> targets = this.jumpTargets(instructions);
+		AbstractInsnNode[] window = new AbstractInsnNode[Superinstructions.MAX_LENGTH];
+		int[] windowOps = new int[Superinstructions.MAX_LENGTH];
+		int[] windowIndex = new int[Superinstructions.MAX_LENGTH];
+		Superinstructions superinstructions = envClass.env.superinstructions();
+		PairProfile profile = envClass.env.pairProfile();
+		int previous = -1;
+
+		RegisterStack registers = null;
+		Frame[] frames = null;
+		if(envClass.env.isRegisterExecution()) {
+			registers = new RegisterStack(maxLocals, maxStack);
+			frames = this.analyze();
+		}
+
+		int len = 0;
+		for(int i = 0; i < instructions.size(); i++) {
+			AbstractInsnNode node = instructions.get(i);
+			out = ensureCapacity(out, len + 3);
+
+			int opcode = node.getOpcode();
+			if(opcode == -1 && targets.contains(node))
+				previous = -1;
+
+			boolean fallback = false;
+			if(registers != null) {
+				// register tier, instructions without a register form run on the stack they left in its slots
+				registers.out = out;
+				registers.len = len;
+				if(opcode == -1) {
+					if(targets.contains(node)) {
+						registers.flush(0, registers.depth());
+						registers.reset(stackSize(frames, i), false);
+					}
+				}
+				else if(!this.translate(node, registers, pool, labelOffsets, jumpLabels, jumpOperands)) {
+					registers.sync();
+					fallback = true;
+				}
+				out = ensureCapacity(registers.out, registers.len + 3);
+				len = registers.len;
+				if(opcode != -1 && !fallback)
+					continue;
+			}
+			else if(opcode != -1) {
+				// superinstructions, matched against the next instructions up to a jump target
+				int count = 0;
+				for(int k = i; k < instructions.size() && count < window.length; k++) {
+					AbstractInsnNode next = instructions.get(k);
+					if(next.getOpcode() != -1) {
+						window[count] = next;
+						windowOps[count] = canonical(next);
+						windowIndex[count++] = k;
+					}
+					else if(targets.contains(next)) {
+						break;
+					}
+				}
+				int[] row = superinstructions.match(windowOps, count);
+				if(row != null) {
+					out = ensureCapacity(out, len + 6);
+					len = this.emitFused(row, window, out, len, pool, labelOffsets, jumpLabels, jumpOperands);
+					i = windowIndex[row.length - 2];
+					for(int k = 0; k < row.length - 1; k++)
+						previous = record(profile, previous, windowOps[k]);
+					continue;
+				}
+				previous = record(profile, previous, windowOps[0]);
+			}
+
+			switch (opcode) {
+			case -1:
+				// frames and line numbers are dropped, labels become offsets
+				if(node instanceof LabelNode)
+					labelOffsets.put((LabelNode) node, Integer.valueOf(len));
+				break;
+
+			case Opcodes.ICONST_M1:
+			case Opcodes.ICONST_0:
+			case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2:
+			case Opcodes.ICONST_3:
+			case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+				out[len++] = Bytecode.ICONST;
+				out[len++] = opcode - Opcodes.ICONST_0;
+				break;
+			case Opcodes.FCONST_0:
+			case Opcodes.FCONST_1:
+			case Opcodes.FCONST_2:
+				out[len++] = Bytecode.FCONST;
+				out[len++] = Float.floatToRawIntBits(opcode - Opcodes.FCONST_0);
+				break;
+			case Opcodes.ACONST_NULL:
+				out[len++] = Bytecode.ACONST;
+				out[len++] = addConstant(pool, null);
+				break;
+			case Opcodes.BIPUSH:
+			case Opcodes.SIPUSH:
+				out[len++] = Bytecode.ICONST;
+				out[len++] = ((IntInsnNode) node).operand;
+				break;
+			case Opcodes.LDC: {
+				Object cst = ((LdcInsnNode) node).cst;
+				if(cst instanceof Integer) {
+					out[len++] = Bytecode.ICONST;
+					out[len++] = ((Integer) cst).intValue();
+				}
+				else if(cst instanceof Float) {
+					out[len++] = Bytecode.FCONST;
+					out[len++] = Float.floatToRawIntBits(((Float) cst).floatValue());
+				}
+				else if(cst instanceof String) {
+					out[len++] = Bytecode.ACONST;
+					out[len++] = addConstant(pool, cst);
+				}
+				else {
+					throw new UnsupportedOperationException("ldc=" + cst);
+				}
+				break;
+			}
+
+			case Opcodes.ILOAD:
+			case Opcodes.FLOAD:
+			case Opcodes.ALOAD:
+			case Opcodes.ISTORE:
+			case Opcodes.FSTORE:
+			case Opcodes.ASTORE:
+				out[len++] = opcode;
+				out[len++] = ((VarInsnNode) node).var;
+				break;
+			case Opcodes.IINC:
+				out[len++] = opcode;
+				out[len++] = ((IincInsnNode) node).var;
+				out[len++] = ((IincInsnNode) node).incr;
+				break;
+
+			case Opcodes.GOTO:
+			case Opcodes.IFNULL:
+			case Opcodes.IFNONNULL:
+			case Opcodes.IFEQ:
+			case Opcodes.IFNE:
+			case Opcodes.IFLT:
+			case Opcodes.IFLE:
+			case Opcodes.IFGT:
+			case Opcodes.IFGE:
+			case Opcodes.IF_ACMPEQ:
+			case Opcodes.IF_ACMPNE:
+			case Opcodes.IF_ICMPEQ:
+			case Opcodes.IF_ICMPNE:
+			case Opcodes.IF_ICMPGT:
+			case Opcodes.IF_ICMPGE:
+			case Opcodes.IF_ICMPLT:
+			case Opcodes.IF_ICMPLE:
+				out = ensureCapacity(out, len + 4);
+				len = emitSafepoint(out, len, labelOffsets.get(((JumpInsnNode) node).label));
+				out[len++] = opcode;
+				jumpOperands.add(Integer.valueOf(len));
+				jumpLabels.add(((JumpInsnNode) node).label);
+				out[len++] = -1;
+				break;
+			case Opcodes.TABLESWITCH: {
+				TableSwitchInsnNode table = (TableSwitchInsnNode) node;
+				out = ensureCapacity(out, len + 6 + table.labels.size());
+				len = emitSafepoint(out, len, firstOffset(labelOffsets, table.dflt, table.labels));
+				out[len++] = opcode;
+				out[len++] = table.min;
+				out[len++] = table.max;
+				jumpOperands.add(Integer.valueOf(len));
+				jumpLabels.add(table.dflt);
+				out[len++] = -1;
+				for(Object label : table.labels) {
+					jumpOperands.add(Integer.valueOf(len));
+					jumpLabels.add((LabelNode) label);
+					out[len++] = -1;
+				}
+				break;
+			}
+			case Opcodes.LOOKUPSWITCH: {
+				LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) node;
+				out = ensureCapacity(out, len + 5 + lookup.keys.size() * 2);
+				len = emitSafepoint(out, len, firstOffset(labelOffsets, lookup.dflt, lookup.labels));
+				out[len++] = opcode;
+				out[len++] = lookup.keys.size();
+				jumpOperands.add(Integer.valueOf(len));
+				jumpLabels.add(lookup.dflt);
+				out[len++] = -1;
+				for(int k = 0; k < lookup.keys.size(); k++) {
+					out[len++] = ((Integer) lookup.keys.get(k)).intValue();
+					jumpOperands.add(Integer.valueOf(len));
+					jumpLabels.add((LabelNode) lookup.labels.get(k));
+					out[len++] = -1;
+				}
+				break;
+			}
+
+			case Opcodes.CHECKCAST:
+				// unchecked
+				break;
+
+			case Opcodes.NEWARRAY:
+				out[len++] = opcode;
+				out[len++] = ((IntInsnNode) node).operand;
+				break;
+			case Opcodes.ANEWARRAY:
+				out[len++] = opcode;
+				out[len++] = addConstant(pool, arrayClass(((TypeInsnNode) node).desc));
+				break;
+			case Opcodes.MULTIANEWARRAY: {
+				// the class of the innermost array that is allocated
+				MultiANewArrayInsnNode multi = (MultiANewArrayInsnNode) node;
+				Class<?> component = arrayClass(multi.desc);
+				for(int d = 0; d < multi.dims; d++)
+					component = component.getComponentType();
+				out[len++] = opcode;
+				out[len++] = addConstant(pool, component);
+				out[len++] = multi.dims;
+				break;
+			}
+
+			case Opcodes.GETFIELD:
+			case Opcodes.PUTFIELD:
+			case Opcodes.GETSTATIC:
+			case Opcodes.PUTSTATIC:
+				out[len++] = opcode;
+				out[len++] = addConstant(pool, new FieldSite(envClass.env, (FieldInsnNode) node));
+				break;
+
+			case Opcodes.INVOKESTATIC: {
+				MethodInsnNode invoke = (MethodInsnNode) node;
+				if(invoke.owner.equals(Scheduler.class.getName().replace('.', '/'))) {
+					out[len++] = decodeSchedulerCall(invoke);
+					suspends |= (out[len - 1] == Bytecode.YIELD || out[len - 1] == Bytecode.SLEEP || out[len - 1] == Bytecode.SUSPEND || out[len - 1] == Bytecode.SUSPEND_ON);
+					break;
+				}
+				out[len++] = opcode;
+				out[len++] = addConstant(pool, new StaticCallSite(envClass.env, invoke));
+				break;
+			}
+			case Opcodes.INVOKEVIRTUAL:
+			case Opcodes.INVOKEINTERFACE: {
+				VirtualCallSite site = new VirtualCallSite((MethodInsnNode) node);
+				out[len++] = Opcodes.INVOKEVIRTUAL;
+				out[len++] = addConstant(pool, site);
+				if(site.async) {
+					out[len++] = Bytecode.AWAIT;
+					suspends = true;
+				}
+				break;
+			}
+
+			default:
+				out[len++] = opcode;
+				break;
+			}
+
+			if(fallback)
+				registers.reset(stackSize(frames, i + 1), true);
+		}
+
+		for(int i = 0; i < jumpOperands.size(); i++) {
+			Integer offset = labelOffsets.get(jumpLabels.get(i));
+			if(offset == null)
+				throw new NoSuchElementException("label");
+			out[jumpOperands.get(i).intValue()] = offset.intValue();
+		}
+
+		code = Arrays.copyOf(out, len);
+		constants = pool.toArray();
+	}
+
+	// register tier
+
+	private Frame[] analyze() {
+		try {
+			return new Analyzer(new BasicVerifier()).analyze(envClass.classNode.name, methodNode);
+		}
+		catch (AnalyzerException e) {
+			throw new IllegalStateException("unverifiable: " + envClass.classNode.name + "." + methodNode.name + methodNode.desc, e);
+		}
+	}
+
+	private static int stackSize(Frame[] frames, int i) {
+		// unreachable code has no frame
+		return (i < frames.length && frames[i] != null) ? frames[i].getStackSize() : 0;
+	}
+
+	private boolean translate(AbstractInsnNode node, RegisterStack registers, List<Object> pool, Map<LabelNode, Integer> labelOffsets, List<LabelNode> jumpLabels, List<Integer> jumpOperands) {
+		int opcode = node.getOpcode();
+		switch (opcode) {
+		case Opcodes.ICONST_M1:
+		case Opcodes.ICONST_0:
+		case Opcodes.ICONST_1:
+		case Opcodes.ICONST_2:
+		case Opcodes.ICONST_3:
+		case Opcodes.ICONST_4:
+		case Opcodes.ICONST_5:
+		case Opcodes.BIPUSH:
+		case Opcodes.SIPUSH:
+			registers.pushConst(intConstant(node));
+			return true;
+		case Opcodes.FCONST_0:
+		case Opcodes.FCONST_1:
+		case Opcodes.FCONST_2:
+			registers.pushConst(Float.floatToRawIntBits(opcode - Opcodes.FCONST_0));
+			return true;
+		case Opcodes.ACONST_NULL:
+			registers.pushAConst(addConstant(pool, null));
+			return true;
+		case Opcodes.LDC: {
+			Object cst = ((LdcInsnNode) node).cst;
+			if(cst instanceof Integer)
+				registers.pushConst(((Integer) cst).intValue());
+			else if(cst instanceof Float)
+				registers.pushConst(Float.floatToRawIntBits(((Float) cst).floatValue()));
+			else if(cst instanceof String)
+				registers.pushAConst(addConstant(pool, cst));
+			else
+				return false;
+			return true;
+		}
+
+		case Opcodes.ILOAD:
+		case Opcodes.FLOAD:
+		case Opcodes.ALOAD:
+			registers.pushReg(((VarInsnNode) node).var);
+			return true;
+		case Opcodes.ISTORE:
+		case Opcodes.FSTORE:
+		case Opcodes.ASTORE:
+			registers.store(((VarInsnNode) node).var);
+			return true;
+		case Opcodes.IINC:
+			registers.spill(((IincInsnNode) node).var);
+			registers.emit(opcode);
+			registers.emit(((IincInsnNode) node).var);
+			registers.emit(((IincInsnNode) node).incr);
+			registers.incremented();
+			return true;
+
+		case Opcodes.IADD:
+		case Opcodes.ISUB:
+			if(registers.isConst(0)) {
+				int constant = registers.constValue(0);
+				registers.pop(1);
+				int src = registers.operand(0);
+				registers.pop(1);
+				int dst = registers.pushResult();
+				registers.emit(Bytecode.IADD_CONST);
+				registers.emit(src);
+				registers.emit((opcode == Opcodes.ISUB) ? -constant : constant);
+				registers.emit(dst);
+				registers.produced(registers.len - 1);
+				return true;
+			}
+			return binary(registers, (opcode == Opcodes.IADD) ? Bytecode.R_IADD : Bytecode.R_ISUB);
+		case Opcodes.IMUL:
+			return binary(registers, Bytecode.R_IMUL);
+		case Opcodes.IDIV:
+			return binary(registers, Bytecode.R_IDIV);
+		case Opcodes.IREM:
+			return binary(registers, Bytecode.R_IREM);
+		case Opcodes.IAND:
+			return binary(registers, Bytecode.R_IAND);
+		case Opcodes.IOR:
+			return binary(registers, Bytecode.R_IOR);
+		case Opcodes.IXOR:
+			return binary(registers, Bytecode.R_IXOR);
+		case Opcodes.ISHL:
+			return binary(registers, Bytecode.R_ISHL);
+		case Opcodes.ISHR:
+			return binary(registers, Bytecode.R_ISHR);
+		case Opcodes.IUSHR:
+			return binary(registers, Bytecode.R_IUSHR);
+		case Opcodes.FADD:
+			return binary(registers, Bytecode.R_FADD);
+		case Opcodes.FSUB:
+			return binary(registers, Bytecode.R_FSUB);
+		case Opcodes.FMUL:
+			return binary(registers, Bytecode.R_FMUL);
+		case Opcodes.FDIV:
+			return binary(registers, Bytecode.R_FDIV);
+		case Opcodes.FREM:
+			return binary(registers, Bytecode.R_FREM);
+		case Opcodes.FCMPL:
+			return binary(registers, Bytecode.R_FCMPL);
+		case Opcodes.FCMPG:
+			return binary(registers, Bytecode.R_FCMPG);
+		case Opcodes.INEG:
+			return unary(registers, Bytecode.R_INEG);
+		case Opcodes.FNEG:
+			return unary(registers, Bytecode.R_FNEG);
+		case Opcodes.I2F:
+			return unary(registers, Bytecode.R_I2F);
+		case Opcodes.F2I:
+			return unary(registers, Bytecode.R_F2I);
+
+		case Opcodes.POP:
+			registers.pop(1);
+			return true;
+		case Opcodes.POP2:
+			registers.pop(2);
+			return true;
+		case Opcodes.DUP:
+			registers.dup();
+			return true;
+		case Opcodes.SWAP:
+			return registers.swap();
+		case Opcodes.CHECKCAST:
+			// unchecked
+			return true;
+
+		case Opcodes.IALOAD:
+			return binary(registers, Bytecode.R_IALOAD);
+		case Opcodes.FALOAD:
+			return binary(registers, Bytecode.R_FALOAD);
+		case Opcodes.AALOAD:
+			return binary(registers, Bytecode.R_AALOAD);
+		case Opcodes.IASTORE:
+			return arrayStore(registers, Bytecode.R_IASTORE);
+		case Opcodes.FASTORE:
+			return arrayStore(registers, Bytecode.R_FASTORE);
+		case Opcodes.AASTORE:
+			return arrayStore(registers, Bytecode.R_AASTORE);
+		case Opcodes.ARRAYLENGTH:
+			return unary(registers, Bytecode.R_ARRAYLENGTH);
+
+		case Opcodes.IFEQ:
+		case Opcodes.IFNE:
+		case Opcodes.IFLT:
+		case Opcodes.IFGE:
+		case Opcodes.IFGT:
+		case Opcodes.IFLE:
+			return this.branch(registers, node, Bytecode.R_IFEQ + (opcode - Opcodes.IFEQ), 1, labelOffsets, jumpLabels, jumpOperands);
+		case Opcodes.IFNULL:
+			return this.branch(registers, node, Bytecode.R_IFNULL, 1, labelOffsets, jumpLabels, jumpOperands);
+		case Opcodes.IFNONNULL:
+			return this.branch(registers, node, Bytecode.R_IFNONNULL, 1, labelOffsets, jumpLabels, jumpOperands);
+		case Opcodes.IF_ICMPEQ:
+		case Opcodes.IF_ICMPNE:
+		case Opcodes.IF_ICMPLT:
+		case Opcodes.IF_ICMPGE:
+		case Opcodes.IF_ICMPGT:
+		case Opcodes.IF_ICMPLE:
+			return this.branch(registers, node, Bytecode.ILOAD_ILOAD_IF_ICMPEQ + (opcode - Opcodes.IF_ICMPEQ), 2, labelOffsets, jumpLabels, jumpOperands);
+		case Opcodes.IF_ACMPEQ:
+			return this.branch(registers, node, Bytecode.R_IF_ACMPEQ, 2, labelOffsets, jumpLabels, jumpOperands);
+		case Opcodes.IF_ACMPNE:
+			return this.branch(registers, node, Bytecode.R_IF_ACMPNE, 2, labelOffsets, jumpLabels, jumpOperands);
+		case Opcodes.GOTO:
+			return this.branch(registers, node, Opcodes.GOTO, 0, labelOffsets, jumpLabels, jumpOperands);
+
+		case Opcodes.RETURN:
+			registers.emit(opcode);
+			return true;
+		case Opcodes.IRETURN:
+			return unaryEnd(registers, Bytecode.R_IRETURN);
+		case Opcodes.FRETURN:
+			return unaryEnd(registers, Bytecode.R_FRETURN);
+		case Opcodes.ARETURN:
+			return unaryEnd(registers, Bytecode.R_ARETURN);
+
+		default:
+			return false;
+		}
+	}
+
+	private static boolean binary(RegisterStack registers, int op) {
+		int b = registers.operand(0);
+		int a = registers.operand(1);
+		registers.pop(2);
+		int dst = registers.pushResult();
+		registers.emit(op);
+		registers.emit(dst);
+		registers.emit(a);
+		registers.emit(b);
+		registers.produced(registers.len - 3);
+		return true;
+	}
+
+	private static boolean unary(RegisterStack registers, int op) {
+		int a = registers.operand(0);
+		registers.pop(1);
+		int dst = registers.pushResult();
+		registers.emit(op);
+		registers.emit(dst);
+		registers.emit(a);
+		registers.produced(registers.len - 2);
+		return true;
+	}
+
+	private static boolean arrayStore(RegisterStack registers, int op) {
+		int value = registers.operand(0);
+		int index = registers.operand(1);
+		int array = registers.operand(2);
+		registers.pop(3);
+		registers.emit(op);
+		registers.emit(array);
+		registers.emit(index);
+		registers.emit(value);
+		return true;
+	}
+
+	private static boolean unaryEnd(RegisterStack registers, int op) {
+		int a = registers.operand(0);
+		registers.pop(1);
+		registers.emit(op);
+		registers.emit(a);
+		return true;
+	}
+
+	private boolean branch(RegisterStack registers, AbstractInsnNode node, int op, int operands, Map<LabelNode, Integer> labelOffsets, List<LabelNode> jumpLabels, List<Integer> jumpOperands) {
+		// the block ends here, whatever stays on the stack goes to its slots first
+		int b = (operands == 2) ? registers.operand(0) : -1;
+		int a = (operands == 2) ? registers.operand(1) : (operands == 1) ? registers.operand(0) : -1;
+		registers.flushBelow(operands);
+		registers.pop(operands);
+
+		// an IINC right before a GOTO becomes IINC_GOTO, as in the stack tier
+		int var = 0, incr = 0;
+		if(op == Opcodes.GOTO && registers.endsWithIinc()) {
+			registers.len -= 3;
+			var = registers.out[registers.len + 1];
+			incr = registers.out[registers.len + 2];
+			op = Bytecode.IINC_GOTO;
+		}
+
+		LabelNode label = ((JumpInsnNode) node).label;
+		registers.out = ensureCapacity(registers.out, registers.len + 2);
+		registers.len = emitSafepoint(registers.out, registers.len, labelOffsets.get(label));
+		registers.emit(op);
+		if(op == Bytecode.IINC_GOTO) {
+			registers.emit(var);
+			registers.emit(incr);
+		}
+		if(a != -1)
+			registers.emit(a);
+		if(b != -1)
+			registers.emit(b);
+		jumpOperands.add(Integer.valueOf(registers.len));
+		jumpLabels.add(label);
+		registers.emit(-1);
+		return true;
+	}
+
+	private Set<LabelNode> jumpTargets(InsnList instructions) {
+		// labels that control can enter through, fusion never swallows one
+		Set<LabelNode> targets = new HashSet<>();
+		for(int i = 0; i < instructions.size(); i++) {
+			AbstractInsnNode node = instructions.get(i);
+			if(node instanceof JumpInsnNode) {
+				targets.add(((JumpInsnNode) node).label);
+			}
+			else if(node instanceof TableSwitchInsnNode) {
+				targets.add(((TableSwitchInsnNode) node).dflt);
+				for(Object label : ((TableSwitchInsnNode) node).labels)
+					targets.add((LabelNode) label);
+			}
+			else if(node instanceof LookupSwitchInsnNode) {
+				targets.add(((LookupSwitchInsnNode) node).dflt);
+				for(Object label : ((LookupSwitchInsnNode) node).labels)
+					targets.add((LabelNode) label);
+			}
+		}
+		for(Object tcb : methodNode.tryCatchBlocks) {
+			TryCatchBlockNode block = (TryCatchBlockNode) tcb;
+			targets.add(block.start);
+			targets.add(block.end);
+			targets.add(block.handler);
+		}
+		return targets;
+	}
+
+	private int emitFused(int[] row, AbstractInsnNode[] window, int[] out, int len, List<Object> pool, Map<LabelNode, Integer> labelOffsets, List<LabelNode> jumpLabels, List<Integer> jumpOperands) {
+		switch (row[0]) {
+		case Bytecode.IADD_CONST: {
+			int constant = intConstant(window[1]);
+			out[len++] = Bytecode.IADD_CONST;
+			out[len++] = ((VarInsnNode) window[0]).var;
+			out[len++] = (window[2].getOpcode() == Opcodes.ISUB) ? -constant : constant;
+			out[len++] = ((VarInsnNode) window[3]).var;
+			break;
+		}
+		case Bytecode.IINC_GOTO: {
+			LabelNode label = ((JumpInsnNode) window[1]).label;
+			len = emitSafepoint(out, len, labelOffsets.get(label));
+			out[len++] = Bytecode.IINC_GOTO;
+			out[len++] = ((IincInsnNode) window[0]).var;
+			out[len++] = ((IincInsnNode) window[0]).incr;
+			jumpOperands.add(Integer.valueOf(len));
+			jumpLabels.add(label);
+			out[len++] = -1;
+			break;
+		}
+		case Bytecode.ALOAD_INVOKEVIRTUAL: {
+			VirtualCallSite site = new VirtualCallSite((MethodInsnNode) window[1]);
+			out[len++] = Bytecode.ALOAD_INVOKEVIRTUAL;
+			out[len++] = ((VarInsnNode) window[0]).var;
+			out[len++] = addConstant(pool, site);
+			if(site.async) {
+				out[len++] = Bytecode.AWAIT;
+				suspends = true;
+			}
+			break;
+		}
+		default: {
+			// ILOAD ILOAD IF_ICMPxx, the safepoint of a backward branch moves in front of the loads
+			LabelNode label = ((JumpInsnNode) window[2]).label;
+			len = emitSafepoint(out, len, labelOffsets.get(label));
+			out[len++] = row[0];
+			out[len++] = ((VarInsnNode) window[0]).var;
+			out[len++] = ((VarInsnNode) window[1]).var;
+			jumpOperands.add(Integer.valueOf(len));
+			jumpLabels.add(label);
+			out[len++] = -1;
+			break;
+		}
+		}
+		return len;
+	}
+
+	private static Class<?> arrayClass(String internalName) {
+		// host types resolve to their class, script types are held as Object
+		Type type = Type.getObjectType(internalName);
+		Type element = (type.getSort() == Type.ARRAY) ? type.getElementType() : type;
+		Class<?> clazz;
+		switch (element.getSort()) {
+		case Type.BOOLEAN:
+			clazz = boolean.class;
+			break;
+		case Type.BYTE:
+			clazz = byte.class;
+			break;
+		case Type.CHAR:
+			clazz = char.class;
+			break;
+		case Type.SHORT:
+			clazz = short.class;
+			break;
+		case Type.INT:
+			clazz = int.class;
+			break;
+		case Type.FLOAT:
+			clazz = float.class;
+			break;
+		case Type.OBJECT:
+			try {
+				clazz = Class.forName(element.getClassName(), false, Env.class.getClassLoader());
+			}
+			catch (ClassNotFoundException e) {
+				clazz = Object.class;
+			}
+			break;
+		default:
+			throw new UnsupportedOperationException("array of " + element);
+		}
+		for(int d = (type.getSort() == Type.ARRAY) ? type.getDimensions() : 0; d > 0; d--)
+			clazz = Array.newInstance(clazz, 0).getClass();
+		return clazz;
+	}
+
+	private static int canonical(AbstractInsnNode node) {
+		switch (node.getOpcode()) {
+		case Opcodes.ICONST_M1:
+		case Opcodes.ICONST_0:
+		case Opcodes.ICONST_1:
+		case Opcodes.ICONST_2:
+		case Opcodes.ICONST_3:
+		case Opcodes.ICONST_4:
+		case Opcodes.ICONST_5:
+		case Opcodes.BIPUSH:
+		case Opcodes.SIPUSH:
+			return Bytecode.ICONST;
+		case Opcodes.LDC:
+			return (((LdcInsnNode) node).cst instanceof Integer) ? Bytecode.ICONST : Opcodes.LDC;
+		default:
+			return node.getOpcode();
+		}
+	}
+
+	private static int intConstant(AbstractInsnNode node) {
+		if(node instanceof LdcInsnNode)
+			return ((Integer) ((LdcInsnNode) node).cst).intValue();
+		if(node instanceof IntInsnNode)
+			return ((IntInsnNode) node).operand;
+		return node.getOpcode() - Opcodes.ICONST_0;
+	}
+
+	private static int record(PairProfile profile, int previous, int opcode) {
+		if(profile != null && previous != -1)
+			profile.record(previous, opcode);
+
+		// the next instruction is not reached from this one
+		switch (opcode) {
+		case Opcodes.GOTO:
+		case Opcodes.TABLESWITCH:
+		case Opcodes.LOOKUPSWITCH:
+		case Opcodes.IRETURN:
+		case Opcodes.FRETURN:
+		case Opcodes.ARETURN:
+		case Opcodes.RETURN:
+		case Opcodes.ATHROW:
+			return -1;
+		default:
+			return opcode;
+		}
+	}
+
+	private static int[] ensureCapacity(int[] arr, int size) {
+		return (size <= arr.length) ? arr : Arrays.copyOf(arr, Math.max(size, arr.length * 2));
+	}
+
+	private static int emitSafepoint(int[] out, int len, Integer backwardTarget) {
+		// backward branches are preceded by a fuel check, charged by the loop length
+		if(backwardTarget == null)
+			return len;
+		out[len] = Bytecode.SAFEPOINT;
+		out[len + 1] = len + 2 - backwardTarget.intValue();
+		return len + 2;
+	}
+
+	private static Integer firstOffset(Map<LabelNode, Integer> labelOffsets, LabelNode dflt, List<?> labels) {
+		Integer first = labelOffsets.get(dflt);
+		for(Object label : labels) {
+			Integer offset = labelOffsets.get(label);
+			if(offset != null && (first == null || offset.intValue() < first.intValue()))
+				first = offset;
+		}
+		return first;
+	}
 
-	int findLabel(int instructionPointer) {
-		int offset = labelOffsetCache[instructionPointer];
-		if(offset == -1)
-			labelOffsetCache[instructionPointer] = offset = this.findLabelImpl(instructionPointer);
-		return offset;
+	private static int decodeSchedulerCall(MethodInsnNode invoke) {
+		switch (invoke.name) {
+		case "yield":
+			return Bytecode.YIELD;
+		case "sleep":
+			return Bytecode.SLEEP;
+		case "suspend":
+			if(invoke.desc.equals("()V"))
+				return Bytecode.SUSPEND;
+			return Bytecode.SUSPEND_ON;
+		case "echo":
+			if(invoke.desc.equals("(I)V"))
+				return Bytecode.ECHO_INT;
+			if(invoke.desc.equals("(F)V"))
+				return Bytecode.ECHO_FLOAT;
+			return Bytecode.ECHO_REF;
+		default:
+			throw new IllegalStateException("Scheduler." + invoke.name);
+		}
 	}
 
-	private int findLabelImpl(int instructionPointer) {
-		JumpInsnNode jump = (JumpInsnNode) instructions.get(instructionPointer);
-		for(int i = 0, len = instructions.size(); i < len; i++)
-			if(instructions.get(i) == jump.label)
-				return i;
-		throw new NoSuchElementException("label");
+	private static int addConstant(List<Object> pool, Object cst) {
+		pool.add(cst);
+		return pool.size() - 1;
 	}
-}
\ No newline at end of file
+}
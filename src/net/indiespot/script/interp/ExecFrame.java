@@ -1,16 +1,15 @@
 package net.indiespot.script.interp;
 
-import java.util.Arrays;
-
-import net.indiespot.script.interp.Interpreter.ExecState;
-
-public class ExecFrame implements Runnable {
-	ExecFrame callsite;
+public class ExecFrame {
+	final Fiber fiber;
+	final ExecFrame callsite;
 	ExecFrame subframe;
 	EnvMethod envMethod;
 	int instructionPointer;
+	int localBase;
+	int stackBase;
 	int stackPointer;
-	TerminationHandler terminationHandler;
+	int frameEnd;
 
 	static final int NONE = 0;
 	static final int REF = 1;
@@ -18,147 +17,189 @@ public class ExecFrame implements Runnable {
 	static final int FLOAT = 3;
 
 	public ExecFrame(TerminationHandler handler) {
-		this(null, null);
-		terminationHandler = handler;
+		this(handler, true);
+	}
+
+	ExecFrame(TerminationHandler handler, boolean tagged) {
+		this.fiber = new Fiber(this, handler, tagged);
+		this.callsite = null;
+		this.frameEnd = 1 /* return value */;
+		fiber.ensureCapacity(frameEnd);
 	}
 
 	public ExecFrame(ExecFrame callsite, EnvMethod envMethod) {
+		this(callsite.fiber, callsite);
+		this.enter(envMethod, 0);
+	}
+
+	private ExecFrame(Fiber fiber, ExecFrame callsite) {
+		this.fiber = fiber;
 		this.callsite = callsite;
-		this.envMethod = envMethod;
+	}
 
-		int maxLocal = (envMethod == null) ? 0 : envMethod.methodNode.maxLocals;
-		int maxStack = (envMethod == null) ? 1 /* return value */: envMethod.methodNode.maxStack;
+	public Fiber getFiber() {
+		return fiber;
+	}
 
-		localType = new int[maxLocal];
-		localData = new int[maxLocal];
-		stackType = new int[maxStack];
-		stackData = new int[maxStack];
-		objLookup = new Object[2];
+	ExecFrame invoke(EnvMethod envMethod) {
+		ExecFrame frame = subframe;
+		if(frame == null)
+			subframe = frame = new ExecFrame(fiber, this);
+		frame.enter(envMethod, envMethod.argSlots);
+		return frame;
 	}
 
-	@Override
-	public void run() {
-		if(instructionPointer == -1)
-			throw new IllegalStateException();
+	private void enter(EnvMethod envMethod, int argSlots) {
+		// the arguments on top of the caller's stack become the first locals
+		this.envMethod = envMethod;
+		instructionPointer = 0;
+		localBase = callsite.stackPointer - argSlots;
+		stackBase = localBase + envMethod.maxLocals;
+		stackPointer = stackBase;
+		frameEnd = stackBase + envMethod.maxStack;
+		callsite.stackPointer = localBase;
 
-		final int executionsPerTick = 100;
+		fiber.ensureCapacity(frameEnd);
+		fiber.top = this;
+	}
+
+	ExecFrame leave() {
+		fiber.clear(localBase, frameEnd);
+		fiber.top = callsite;
+		return callsite;
+	}
 
-		ExecState lastState = ExecState.RUNNING;
-		for(int i = 0; i < executionsPerTick; i++)
-			if((lastState = Interpreter.step(this)) != ExecState.RUNNING)
-				break;
+	// stack, the type tags are only checked when the fiber has them
 
-		if(lastState == ExecState.RUNNING)
-			Scheduler.signalResume(this);
-		else if(lastState == ExecState.TERMINATED)
-			Scheduler.signalTerminated(callsite);
+	void pop() {
+		if(fiber.slotType != null)
+			fiber.slotType[stackPointer - 1] = NONE;
+		fiber.slotRef[--stackPointer] = null;
 	}
 
-	private final int[] localType;
-	private final int[] localData;
-	final int[] stackType;
-	final int[] stackData;
-	private Object[] objLookup;
+	void swap() {
+		int[] slotType = fiber.slotType;
+		int[] slotData = fiber.slotData;
+		Object[] slotRef = fiber.slotRef;
 
-	private int ensure(Object v) {
-		if(v == null)
-			return -1;
-		for(int i = 0; true; i++) {
-			if(i == objLookup.length)
-				objLookup = Arrays.copyOf(objLookup, objLookup.length * 2);
-			if(objLookup[i] == null)
-				objLookup[i] = v;
-			if(objLookup[i] == v)
-				return i;
-		}
+		int t = (slotType == null) ? NONE : slotType[stackPointer - 2];
+		int d = slotData[stackPointer - 2];
+		Object r = slotRef[stackPointer - 2];
+		fiber.move(stackPointer - 1, stackPointer - 2);
+		if(slotType != null)
+			slotType[stackPointer - 1] = t;
+		slotData[stackPointer - 1] = d;
+		slotRef[stackPointer - 1] = r;
 	}
 
-	private Object lookup(int ref) {
-		return (ref == -1) ? null : objLookup[ref];
+	void dup(int count, int skip) {
+		int sp = stackPointer;
+		for(int i = sp - 1; i >= sp - count - skip; i--)
+			fiber.move(i, i + count);
+		for(int i = 0; i < count; i++)
+			fiber.move(sp + i, sp - count - skip + i);
+		stackPointer = sp + count;
 	}
 
-	int peekType() {
-		return stackType[stackPointer - 1];
+	private static void check(int[] slotType, int slot, int type) {
+		if(slotType != null && slotType[slot] != type)
+			throw new IllegalStateException();
+	}
+
+	private static void tag(int[] slotType, int slot, int type) {
+		if(slotType != null)
+			slotType[slot] = type;
 	}
 
 	// ref
 
 	void setRef(int idx, Object v) {
-		localType[idx] = REF;
-		localData[idx] = ensure(v);
+		tag(fiber.slotType, localBase + idx, REF);
+		fiber.slotRef[localBase + idx] = v;
 	}
 
 	Object getRef(int idx) {
-		if(localType[idx] != REF)
-			throw new IllegalStateException();
-		return lookup(localData[idx]);
+		check(fiber.slotType, localBase + idx, REF);
+		return fiber.slotRef[localBase + idx];
 	}
 
 	void pushRef(Object v) {
-		if(stackType[stackPointer] != NONE)
-			throw new IllegalStateException();
-		stackType[stackPointer] = REF;
-		stackData[stackPointer++] = ensure(v);
+		int[] slotType = fiber.slotType;
+		check(slotType, stackPointer, NONE);
+		tag(slotType, stackPointer, REF);
+		fiber.slotRef[stackPointer++] = v;
+	}
+
+	Object peekRef(int depth) {
+		check(fiber.slotType, stackPointer - 1 - depth, REF);
+		return fiber.slotRef[stackPointer - 1 - depth];
 	}
 
 	Object popRef() {
-		if(stackType[stackPointer - 1] != REF)
-			throw new IllegalStateException();
-		stackType[stackPointer - 1] = NONE;
-		return lookup(stackData[--stackPointer]);
+		int[] slotType = fiber.slotType;
+		check(slotType, stackPointer - 1, REF);
+		tag(slotType, --stackPointer, NONE);
+		Object v = fiber.slotRef[stackPointer];
+		fiber.slotRef[stackPointer] = null;
+		return v;
 	}
 
 	// int
 
 	void setInt(int idx, int v) {
-		localType[idx] = INT;
-		localData[idx] = v;
+		int[] slotType = fiber.slotType;
+		if(slotType != null)
+			slotType[localBase + idx] = INT;
+		// a reference the slot held before would otherwise stay reachable
+		fiber.slotRef[localBase + idx] = null;
+		fiber.slotData[localBase + idx] = v;
 	}
 
 	int getInt(int idx) {
-		if(localType[idx] != INT)
-			throw new IllegalStateException();
-		return localData[idx];
+		check(fiber.slotType, localBase + idx, INT);
+		return fiber.slotData[localBase + idx];
 	}
 
 	void pushInt(int v) {
-		if(stackType[stackPointer] != NONE)
-			throw new IllegalStateException();
-		stackType[stackPointer] = INT;
-		stackData[stackPointer++] = v;
+		int[] slotType = fiber.slotType;
+		check(slotType, stackPointer, NONE);
+		tag(slotType, stackPointer, INT);
+		fiber.slotData[stackPointer++] = v;
 	}
 
 	int popInt() {
-		if(stackType[stackPointer - 1] != INT)
-			throw new IllegalStateException();
-		stackType[stackPointer - 1] = NONE;
-		return stackData[--stackPointer];
+		int[] slotType = fiber.slotType;
+		check(slotType, stackPointer - 1, INT);
+		tag(slotType, --stackPointer, NONE);
+		return fiber.slotData[stackPointer];
 	}
 
 	// float
 
 	void setFloat(int idx, float v) {
-		localType[idx] = FLOAT;
-		localData[idx] = Float.floatToRawIntBits(v);
+		int[] slotType = fiber.slotType;
+		if(slotType != null)
+			slotType[localBase + idx] = FLOAT;
+		fiber.slotRef[localBase + idx] = null;
+		fiber.slotData[localBase + idx] = Float.floatToRawIntBits(v);
 	}
 
 	float getFloat(int idx) {
-		if(localType[idx] != FLOAT)
-			throw new IllegalStateException();
-		return Float.intBitsToFloat(localData[idx]);
+		check(fiber.slotType, localBase + idx, FLOAT);
+		return Float.intBitsToFloat(fiber.slotData[localBase + idx]);
 	}
 
 	void pushFloat(float v) {
-		if(stackType[stackPointer] != NONE)
-			throw new IllegalStateException();
-		stackType[stackPointer] = FLOAT;
-		stackData[stackPointer++] = Float.floatToRawIntBits(v);
+		int[] slotType = fiber.slotType;
+		check(slotType, stackPointer, NONE);
+		tag(slotType, stackPointer, FLOAT);
+		fiber.slotData[stackPointer++] = Float.floatToRawIntBits(v);
 	}
 
 	float popFloat() {
-		if(stackType[stackPointer - 1] != FLOAT)
-			throw new IllegalStateException();
-		stackType[stackPointer - 1] = NONE;
-		return Float.intBitsToFloat(stackData[--stackPointer]);
+		int[] slotType = fiber.slotType;
+		check(slotType, stackPointer - 1, FLOAT);
+		tag(slotType, --stackPointer, NONE);
+		return Float.intBitsToFloat(fiber.slotData[stackPointer]);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+package net.indiespot.script.interp;
+
+import java.util.Arrays;
+
+import net.indiespot.script.interp.Interpreter.ExecState;
+
+public class Fiber extends ScheduledTask {
+	final ExecFrame root;
+	final TerminationHandler terminationHandler;
+	ExecFrame top;
+	Continuation continuation;
+	SlicePolicy slicePolicy = SlicePolicy.DEFAULT;
+	boolean suspended;
+	Object waitKey;
+	boolean wakePermit;
+	int awaitSequence;
+	boolean cancelled;
+	boolean synchronous;
+	FiberFuture<?> future;
+
+	// the frames of this fiber are windows into these slots, slotType is null for verified code
+	int[] slotType;
+	int[] slotData;
+	Object[] slotRef;
+
+	Fiber(ExecFrame root, TerminationHandler handler, boolean tagged) {
+		this.root = root;
+		this.terminationHandler = handler;
+		this.top = root;
+
+		if(tagged)
+			slotType = new int[16];
+		slotData = new int[16];
+		slotRef = new Object[16];
+	}
+
+	@Override
+	public void run() {
+		if(cancelled)
+			return;
+		if(top == root)
+			throw new IllegalStateException();
+
+		ExecState state;
+		try {
+			if(continuation != null)
+				state = continuation.run(this);
+			else
+				state = slicePolicy.run(this);
+		}
+		catch (RuntimeException | Error e) {
+			if(future == null)
+				throw e;
+			// the fiber is dead, its future reports why
+			cancelled = true;
+			future.completeExceptionally(e);
+			return;
+		}
+		if(state == ExecState.RUNNING)
+			Scheduler.signalResume(this);
+		else if(state == ExecState.TERMINATED)
+			Scheduler.signalTerminated(this);
+	}
+
+	public void setSlicePolicy(SlicePolicy policy) {
+		if(policy == null)
+			throw new NullPointerException();
+		this.slicePolicy = policy;
+	}
+
+	public SlicePolicy getSlicePolicy() {
+		return slicePolicy;
+	}
+
+	void ensureCapacity(int size) {
+		if(size <= slotData.length)
+			return;
+		int capacity = Math.max(size, slotData.length * 2);
+		if(slotType != null)
+			slotType = Arrays.copyOf(slotType, capacity);
+		slotData = Arrays.copyOf(slotData, capacity);
+		slotRef = Arrays.copyOf(slotRef, capacity);
+	}
+
+	void move(int src, int dst) {
+		if(slotType != null)
+			slotType[dst] = slotType[src];
+		slotData[dst] = slotData[src];
+		slotRef[dst] = slotRef[src];
+	}
+
+	void clear(int from, int to) {
+		if(slotType != null)
+			Arrays.fill(slotType, from, to, ExecFrame.NONE);
+		Arrays.fill(slotRef, from, to, null);
+	}
+}
@@ -0,0 +1,142 @@
+package net.indiespot.script.interp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+public class FiberFuture<T> extends CompletableFuture<T> {
+	private final Scheduler scheduler;
+	private final ExecFrame frame;
+
+	FiberFuture(Scheduler scheduler, EnvMethod envMethod, Object[] args) {
+		this.scheduler = scheduler;
+		this.frame = envMethod.prepare(new ResultHandler(this, envMethod));
+		frame.fiber.future = this;
+		setArguments(frame, envMethod, args);
+	}
+
+	ExecFrame frame() {
+		return frame;
+	}
+
+	public Fiber getFiber() {
+		return frame.fiber;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		if(cancelled)
+			scheduler.submitCancel(frame);
+		return cancelled;
+	}
+
+	void completeCancelled() {
+		// the fiber was cancelled through its scheduler, which needs no second message
+		super.cancel(false);
+	}
+
+	// combinators, completed on the thread that completes the last (or first) fiber
+
+	@SafeVarargs
+	public static <T> CompletableFuture<List<T>> all(CompletableFuture<? extends T>... futures) {
+		List<CompletableFuture<? extends T>> list = new ArrayList<>(futures.length);
+		for(CompletableFuture<? extends T> future : futures)
+			list.add(future);
+		return all(list);
+	}
+
+	public static <T> CompletableFuture<List<T>> all(List<? extends CompletableFuture<? extends T>> futures) {
+		final List<CompletableFuture<? extends T>> copy = new ArrayList<>(futures);
+		return CompletableFuture.allOf(copy.toArray(new CompletableFuture<?>[copy.size()])).thenApply(new Function<Void, List<T>>() {
+			@Override
+			public List<T> apply(Void ignored) {
+				List<T> results = new ArrayList<>(copy.size());
+				for(CompletableFuture<? extends T> future : copy)
+					results.add(future.join());
+				return results;
+			}
+		});
+	}
+
+	@SafeVarargs
+	public static <T> CompletableFuture<T> any(CompletableFuture<? extends T>... futures) {
+		List<CompletableFuture<? extends T>> list = new ArrayList<>(futures.length);
+		for(CompletableFuture<? extends T> future : futures)
+			list.add(future);
+		return any(list);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> CompletableFuture<T> any(List<? extends CompletableFuture<? extends T>> futures) {
+		// completes with the result of whichever future is first, which is a T
+		return (CompletableFuture<T>) CompletableFuture.anyOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	//
+
+	static void setArguments(ExecFrame frame, EnvMethod envMethod, Object[] args) {
+		char[] paramTypes = envMethod.paramTypes;
+		if(args.length != paramTypes.length)
+			throw new IllegalArgumentException("expected " + paramTypes.length + " arguments, got " + args.length);
+
+		for(int i = 0; i < args.length; i++) {
+			Object arg = args[i];
+			switch (paramTypes[i]) {
+			case 'I':
+				if(arg instanceof Boolean)
+					frame.setInt(i, ((Boolean) arg).booleanValue() ? 1 : 0);
+				else if(arg instanceof Character)
+					frame.setInt(i, ((Character) arg).charValue());
+				else
+					frame.setInt(i, ((Number) arg).intValue());
+				break;
+			case 'F':
+				frame.setFloat(i, ((Number) arg).floatValue());
+				break;
+			default:
+				frame.setRef(i, arg);
+				break;
+			}
+		}
+	}
+
+	static Object popResult(ExecFrame callsite, EnvMethod envMethod) {
+		String desc = envMethod.methodNode.desc;
+		switch (desc.charAt(desc.indexOf(')') + 1)) {
+		case 'V':
+			return null;
+		case 'Z':
+			return Boolean.valueOf(callsite.popInt() != 0);
+		case 'B':
+			return Byte.valueOf((byte) callsite.popInt());
+		case 'C':
+			return Character.valueOf((char) callsite.popInt());
+		case 'S':
+			return Short.valueOf((short) callsite.popInt());
+		case 'I':
+			return Integer.valueOf(callsite.popInt());
+		case 'F':
+			return Float.valueOf(callsite.popFloat());
+		default:
+			return callsite.popRef();
+		}
+	}
+
+	private static class ResultHandler implements TerminationHandler {
+		private final FiberFuture<?> future;
+		private final EnvMethod envMethod;
+
+		ResultHandler(FiberFuture<?> future, EnvMethod envMethod) {
+			this.future = future;
+			this.envMethod = envMethod;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void onTermination(ExecFrame callsite) {
+			((FiberFuture<Object>) future).complete(popResult(callsite, envMethod));
+		}
+	}
+}
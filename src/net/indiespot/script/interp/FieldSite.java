@@ -0,0 +1,305 @@
+package net.indiespot.script.interp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldInsnNode;
+
+class FieldSite {
+	final Env env;
+	final String owner;
+	final String name;
+	final String desc;
+	final boolean isStatic;
+	private final boolean put;
+	private final char kind;
+
+	private volatile Link link;
+
+	FieldSite(Env env, FieldInsnNode insn) {
+		this.env = env;
+		this.owner = insn.owner;
+		this.name = insn.name;
+		this.desc = insn.desc;
+		this.isStatic = (insn.getOpcode() == Opcodes.GETSTATIC || insn.getOpcode() == Opcodes.PUTSTATIC);
+		this.put = (insn.getOpcode() == Opcodes.PUTFIELD || insn.getOpcode() == Opcodes.PUTSTATIC);
+		this.kind = EnvClass.parseReturn(desc);
+	}
+
+	// instance fields, linked against the class of the receiver
+
+	void get(ExecFrame frame) {
+		Object target = frame.popRef();
+		MethodHandle h = this.handle(target);
+		try {
+			switch (kind) {
+			case 'I':
+				frame.pushInt((int) h.invokeExact(target));
+				break;
+			case 'F':
+				frame.pushFloat((float) h.invokeExact(target));
+				break;
+			default:
+				frame.pushRef((Object) h.invokeExact(target));
+				break;
+			}
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	void put(ExecFrame frame) {
+		try {
+			switch (kind) {
+			case 'I': {
+				int value = frame.popInt();
+				Object target = frame.popRef();
+				this.handle(target).invokeExact(target, value);
+				break;
+			}
+			case 'F': {
+				float value = frame.popFloat();
+				Object target = frame.popRef();
+				this.handle(target).invokeExact(target, value);
+				break;
+			}
+			default: {
+				Object value = frame.popRef();
+				Object target = frame.popRef();
+				this.handle(target).invokeExact(target, value);
+				break;
+			}
+			}
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	private MethodHandle handle(Object target) {
+		if(target == null)
+			throw new NullPointerException(owner + "." + name);
+
+		Class<?> clazz = target.getClass();
+		Link linked = link;
+		if(linked == null || clazz != linked.receiverClass) {
+			// a subclass of the class the field was resolved in reuses its handle
+			if(linked != null && linked.declaringClass.isInstance(target))
+				linked = new Link(null, -1, linked.handle, linked.declaringClass, clazz);
+			else
+				linked = this.link(clazz);
+			link = linked;
+		}
+		return linked.handle;
+	}
+
+	private Link staticLink() {
+		Link linked = link;
+		if(linked == null)
+			link = linked = this.linkStatic();
+		return linked;
+	}
+
+	// static fields
+
+	void getStatic(ExecFrame frame) {
+		Link linked = this.staticLink();
+		EnvClass scriptOwner = linked.scriptOwner;
+		if(scriptOwner != null) {
+			switch (kind) {
+			case 'I':
+				frame.pushInt(scriptOwner.staticData[linked.slot]);
+				break;
+			case 'F':
+				frame.pushFloat(Float.intBitsToFloat(scriptOwner.staticData[linked.slot]));
+				break;
+			default:
+				frame.pushRef(scriptOwner.staticRefs[linked.slot]);
+				break;
+			}
+			return;
+		}
+
+		MethodHandle h = linked.handle;
+		try {
+			switch (kind) {
+			case 'I':
+				frame.pushInt((int) h.invokeExact());
+				break;
+			case 'F':
+				frame.pushFloat((float) h.invokeExact());
+				break;
+			default:
+				frame.pushRef((Object) h.invokeExact());
+				break;
+			}
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	void putStatic(ExecFrame frame) {
+		Link linked = this.staticLink();
+		EnvClass scriptOwner = linked.scriptOwner;
+		if(scriptOwner != null) {
+			switch (kind) {
+			case 'I':
+				scriptOwner.staticData[linked.slot] = frame.popInt();
+				break;
+			case 'F':
+				scriptOwner.staticData[linked.slot] = Float.floatToRawIntBits(frame.popFloat());
+				break;
+			default:
+				scriptOwner.staticRefs[linked.slot] = frame.popRef();
+				break;
+			}
+			return;
+		}
+
+		MethodHandle h = linked.handle;
+		try {
+			switch (kind) {
+			case 'I':
+				h.invokeExact(frame.popInt());
+				break;
+			case 'F':
+				h.invokeExact(frame.popFloat());
+				break;
+			default:
+				h.invokeExact(frame.popRef());
+				break;
+			}
+		}
+		catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	boolean isScriptStatic() {
+		// decided before linking, by the analysis that keeps such methods out of native execution
+		return isStatic && env.findClass(owner) != null;
+	}
+
+	// linking, on first execution as the owner may be registered after the accessing class
+
+	private Link linkStatic() {
+		EnvClass envClass = env.findClass(owner);
+		if(envClass != null) {
+			for(EnvClass c = envClass; c != null; c = env.findClass(c.classNode.superName)) {
+				int found = c.staticSlot(name);
+				if(found != -1) {
+					this.checkKind();
+					c.initialize();
+					return new Link(c, found, null, null, null);
+				}
+			}
+			throw new NoSuchFieldError(owner + "." + name);
+		}
+
+		try {
+			return this.link(Class.forName(owner.replace('/', '.')));
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Link link(Class<?> clazz) {
+		this.checkKind();
+		Field field = this.findField(clazz);
+		if(field == null)
+			throw new NoSuchFieldError(owner + "." + name);
+		if(put && Modifier.isFinal(field.getModifiers()))
+			throw new IllegalAccessError("final field: " + owner + "." + name);
+
+		// only public fields of public classes, typed as (Object) -> int|float|Object and (Object, int|float|Object) -> void
+		Class<?> declaringClass = field.getDeclaringClass();
+		Class<?> type = (kind == 'I') ? int.class : (kind == 'F') ? float.class : Object.class;
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodHandle handle;
+		MethodType adapted;
+		try {
+			if(put) {
+				handle = isStatic ? lookup.findStaticSetter(declaringClass, name, field.getType()) : lookup.findSetter(declaringClass, name, field.getType());
+				adapted = isStatic ? MethodType.methodType(void.class, type) : MethodType.methodType(void.class, Object.class, type);
+			}
+			else {
+				handle = isStatic ? lookup.findStaticGetter(declaringClass, name, field.getType()) : lookup.findGetter(declaringClass, name, field.getType());
+				adapted = isStatic ? MethodType.methodType(type) : MethodType.methodType(type, Object.class);
+			}
+		}
+		catch (NoSuchFieldException | IllegalAccessException e) {
+			IllegalAccessError error = new IllegalAccessError("field: " + owner + "." + name);
+			error.initCause(e);
+			throw error;
+		}
+		handle = MethodHandles.explicitCastArguments(handle, adapted);
+		return new Link(null, -1, handle, declaringClass, clazz);
+	}
+
+	private Field findField(Class<?> clazz) {
+		// resolution starts at the owner, which a receiver of a subclass has to be searched for
+		Class<?> start = clazz;
+		String ownerName = owner.replace('/', '.');
+		for(Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			if(c.getName().equals(ownerName)) {
+				start = c;
+				break;
+			}
+		}
+
+		for(Class<?> c = start; c != null; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredField(name);
+			}
+			catch (NoSuchFieldException e) {
+				continue;
+			}
+		}
+
+		// constants of interfaces
+		try {
+			return start.getField(name);
+		}
+		catch (NoSuchFieldException e) {
+			return null;
+		}
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if(t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if(t instanceof Error)
+			throw (Error) t;
+		return new IllegalStateException(t);
+	}
+
+	private void checkKind() {
+		// long and double values are not supported by the frames
+		if(kind != 'I' && kind != 'F' && kind != 'A')
+			throw new UnsupportedOperationException("field type: " + owner + "." + name + " " + desc);
+	}
+
+	private static final class Link {
+		// a static of a registered class lives in its slots, anything else is accessed through the handle
+		final EnvClass scriptOwner;
+		final int slot;
+		final MethodHandle handle;
+		final Class<?> declaringClass;
+		final Class<?> receiverClass;
+
+		Link(EnvClass scriptOwner, int slot, MethodHandle handle, Class<?> declaringClass, Class<?> receiverClass) {
+			this.scriptOwner = scriptOwner;
+			this.slot = slot;
+			this.handle = handle;
+			this.declaringClass = declaringClass;
+			this.receiverClass = receiverClass;
+		}
+	}
+}
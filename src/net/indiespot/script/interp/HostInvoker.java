@@ -0,0 +1,256 @@
+package net.indiespot.script.interp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+class HostInvoker {
+	private static final int RET_VOID = 0;
+	private static final int RET_INT = 1;
+	private static final int RET_FLOAT = 2;
+	private static final int RET_REF = 3;
+
+	// parameter shapes with a specialized invoker, floats are passed as int bits
+	private static final String[] SHAPES = { "", "I", "A", "II", "IA", "AI", "AA" };
+	private static final int SHAPE_GENERIC = -1;
+
+	final char[] paramTypes;
+	private final int returnType;
+	private final int shape;
+	private final boolean hasReceiver;
+
+	HostInvoker(String desc, boolean hasReceiver) {
+		this.paramTypes = EnvClass.parseParams(desc.substring(1, desc.indexOf(')')));
+		this.hasReceiver = hasReceiver;
+
+		switch (desc.charAt(desc.indexOf(')') + 1)) {
+		case 'V':
+			returnType = RET_VOID;
+			break;
+		case 'F':
+			returnType = RET_FLOAT;
+			break;
+		case 'L':
+		case '[':
+			returnType = RET_REF;
+			break;
+		case 'J':
+		case 'D':
+			throw new UnsupportedOperationException("return type: " + desc);
+		default:
+			returnType = RET_INT;
+			break;
+		}
+
+		String kinds = new String(paramTypes).replace('F', 'I');
+		int found = SHAPE_GENERIC;
+		for(int i = 0; i < SHAPES.length; i++)
+			if(SHAPES[i].equals(kinds))
+				found = i;
+		shape = found;
+	}
+
+	MethodHandle adapt(MethodHandle handle) {
+		if(!hasReceiver)
+			handle = MethodHandles.dropArguments(handle, 0, Object.class);
+
+		// adapt to the invoker shape: (Object, int|float|Object...) -> void|int|float|Object
+		// where the specialized shapes pass floats as their int bits
+		boolean floatBits = (shape != SHAPE_GENERIC);
+
+		Class<?>[] params = new Class<?>[paramTypes.length + 1];
+		params[0] = Object.class;
+		for(int i = 0; i < paramTypes.length; i++) {
+			if(paramTypes[i] == 'I') {
+				params[i + 1] = int.class;
+			}
+			else if(paramTypes[i] == 'A') {
+				params[i + 1] = Object.class;
+			}
+			else if(floatBits) {
+				handle = MethodHandles.filterArguments(handle, i + 1, INT_BITS_TO_FLOAT);
+				params[i + 1] = int.class;
+			}
+			else {
+				params[i + 1] = float.class;
+			}
+		}
+
+		Class<?> ret;
+		if(returnType == RET_INT) {
+			ret = int.class;
+		}
+		else if(returnType == RET_REF) {
+			ret = Object.class;
+		}
+		else if(returnType == RET_VOID) {
+			ret = void.class;
+		}
+		else if(floatBits) {
+			handle = MethodHandles.filterReturnValue(handle, FLOAT_TO_RAW_INT_BITS);
+			ret = int.class;
+		}
+		else {
+			ret = float.class;
+		}
+
+		return MethodHandles.explicitCastArguments(handle, MethodType.methodType(ret, params));
+	}
+
+	void invoke(ExecFrame frame, MethodHandle handle) {
+		try {
+			if(shape == SHAPE_GENERIC)
+				this.invokeGeneric(frame, handle);
+			else
+				this.invokeShape(frame, handle);
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	// invokers
+
+	private void invokeShape(ExecFrame frame, MethodHandle h) throws Throwable {
+		switch (shape) {
+		case 0: {
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target));
+			break;
+		}
+		case 1: {
+			int a = this.popInt(frame, 0);
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target, a);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target, a));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target, a));
+			break;
+		}
+		case 2: {
+			Object a = frame.popRef();
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target, a);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target, a));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target, a));
+			break;
+		}
+		case 3: {
+			int b = this.popInt(frame, 1);
+			int a = this.popInt(frame, 0);
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target, a, b);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target, a, b));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target, a, b));
+			break;
+		}
+		case 4: {
+			Object b = frame.popRef();
+			int a = this.popInt(frame, 0);
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target, a, b);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target, a, b));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target, a, b));
+			break;
+		}
+		case 5: {
+			int b = this.popInt(frame, 1);
+			Object a = frame.popRef();
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target, a, b);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target, a, b));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target, a, b));
+			break;
+		}
+		case 6: {
+			Object b = frame.popRef();
+			Object a = frame.popRef();
+			Object target = this.popTarget(frame);
+			if(returnType == RET_VOID)
+				h.invokeExact(target, a, b);
+			else if(returnType == RET_REF)
+				frame.pushRef((Object) h.invokeExact(target, a, b));
+			else
+				this.pushInt(frame, (int) h.invokeExact(target, a, b));
+			break;
+		}
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private Object popTarget(ExecFrame frame) {
+		return hasReceiver ? frame.popRef() : null;
+	}
+
+	private int popInt(ExecFrame frame, int param) {
+		if(paramTypes[param] == 'F')
+			return Float.floatToRawIntBits(frame.popFloat());
+		return frame.popInt();
+	}
+
+	private void pushInt(ExecFrame frame, int value) {
+		if(returnType == RET_FLOAT)
+			frame.pushFloat(Float.intBitsToFloat(value));
+		else
+			frame.pushInt(value);
+	}
+
+	private void invokeGeneric(ExecFrame frame, MethodHandle h) throws Throwable {
+		Object[] values = new Object[paramTypes.length + 1];
+		for(int i = paramTypes.length - 1; i >= 0; i--) {
+			if(paramTypes[i] == 'I')
+				values[i + 1] = Integer.valueOf(frame.popInt());
+			else if(paramTypes[i] == 'F')
+				values[i + 1] = Float.valueOf(frame.popFloat());
+			else
+				values[i + 1] = frame.popRef();
+		}
+		values[0] = this.popTarget(frame);
+
+		Object got = h.invokeWithArguments(values);
+
+		if(returnType == RET_INT)
+			frame.pushInt(((Integer) got).intValue());
+		else if(returnType == RET_FLOAT)
+			frame.pushFloat(((Float) got).floatValue());
+		else if(returnType == RET_REF)
+			frame.pushRef(got);
+	}
+
+	private static final MethodHandle INT_BITS_TO_FLOAT;
+	private static final MethodHandle FLOAT_TO_RAW_INT_BITS;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			INT_BITS_TO_FLOAT = lookup.findStatic(Float.class, "intBitsToFloat", MethodType.methodType(float.class, int.class));
+			FLOAT_TO_RAW_INT_BITS = lookup.findStatic(Float.class, "floatToRawIntBits", MethodType.methodType(int.class, float.class));
+		}
+		catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package net.indiespot.script.interp;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+class Inbox {
+	static final int START = 1;
+	static final int WAKE = 2;
+	static final int CANCEL = 3;
+	static final int SIGNAL = 4;
+	static final int SIGNAL_ALL = 5;
+	// completion of an await, delay carries the fiber's await sequence
+	static final int AWAITED = 6;
+
+	// producers push onto a lock-free stack, the consumer takes it whole
+	private final AtomicReference<Message> head = new AtomicReference<>();
+
+	// the thread parked in awaitNextDeadline, if any
+	volatile Thread waiter;
+
+	void post(int kind, Object key) {
+		Message message = new Message(kind, null, 0);
+		message.key = key;
+		this.push(message);
+	}
+
+	void post(int kind, ScheduledTask task, int delay) {
+		this.push(new Message(kind, task, delay));
+	}
+
+	private void push(Message message) {
+		Message next;
+		do {
+			next = head.get();
+			message.next = next;
+		}
+		while (!head.compareAndSet(next, message));
+
+		this.wakeup();
+	}
+
+	void wakeup() {
+		Thread thread = waiter;
+		if(thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	boolean isEmpty() {
+		return head.get() == null;
+	}
+
+	Message drain() {
+		// oldest first
+		Message reversed = null;
+		for(Message message = head.getAndSet(null), next; message != null; message = next) {
+			next = message.next;
+			message.next = reversed;
+			reversed = message;
+		}
+		return reversed;
+	}
+
+	static class Message {
+		final int kind;
+		final ScheduledTask task;
+		final int delay;
+		Object key;
+		Message next;
+
+		Message(int kind, ScheduledTask task, int delay) {
+			this.kind = kind;
+			this.task = task;
+			this.delay = delay;
+		}
+	}
+}
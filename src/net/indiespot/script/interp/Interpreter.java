@@ -1,532 +1,1066 @@
 package net.indiespot.script.interp;
 
+import java.lang.reflect.Array;
+import java.util.concurrent.CompletionStage;
+
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.IincInsnNode;
-import org.objectweb.asm.tree.IntInsnNode;
-import org.objectweb.asm.tree.LdcInsnNode;
-import org.objectweb.asm.tree.MethodInsnNode;
-import org.objectweb.asm.tree.VarInsnNode;
 
 public class Interpreter {
 	public static enum ExecState {
 		RUNNING, YIELDED, SLEEPING, SUSPENDED, TERMINATED;
 	}
 
-	public static ExecState step(ExecFrame frame) {
-		if(frame.subframe != null) {
-			ExecState state = step(frame.subframe);
-			if(state == ExecState.TERMINATED)
-				state = ExecState.RUNNING;
-			return state;
-		}
+	static final int CALL_FUEL = 8;
 
+	public static ExecState run(Fiber fiber, int fuel) {
+		ExecFrame frame = fiber.top;
+		int[] code = frame.envMethod.code;
 		int ip = frame.instructionPointer;
-		int ipOld = ip;
-		AbstractInsnNode node = frame.envMethod.instructions.get(ip);
-
-		switch (node.getOpcode()) {
-		case Opcodes.FCONST_0:
-		case Opcodes.FCONST_1:
-		case Opcodes.FCONST_2: {
-			frame.pushFloat(node.getOpcode() - Opcodes.FCONST_0);
-			break;
-		}
-		case Opcodes.ICONST_M1:
-		case Opcodes.ICONST_0:
-		case Opcodes.ICONST_1:
-		case Opcodes.ICONST_2:
-		case Opcodes.ICONST_3:
-		case Opcodes.ICONST_4:
-		case Opcodes.ICONST_5: {
-			frame.pushInt(node.getOpcode() - Opcodes.ICONST_M1 - 1);
-			break;
-		}
-		case Opcodes.ACONST_NULL: {
-			frame.pushRef(null);
-			break;
-		}
-		case Opcodes.BIPUSH:
-		case Opcodes.SIPUSH: {
-			frame.pushInt(((IntInsnNode) node).operand);
-			break;
-		}
-		case Opcodes.LDC: {
-			Object cst = ((LdcInsnNode) node).cst;
-			if(cst instanceof Integer)
-				frame.pushFloat(((Integer) cst).intValue());
-			else if(cst instanceof Float)
-				frame.pushFloat(((Float) cst).floatValue());
-			else if(cst instanceof String)
-				frame.pushRef(cst);
-			else
-				throw new IllegalStateException();
-			break;
-		}
-		case Opcodes.I2F: {
-			frame.pushFloat(frame.popInt());
-			break;
-		}
-		case Opcodes.F2I: {
-			frame.pushInt((int) frame.popFloat());
-			break;
-		}
-		case Opcodes.INEG: {
-			int var = ((VarInsnNode) node).var;
-			frame.pushInt(~frame.getInt(var));
-			break;
-		}
-		case Opcodes.FNEG: {
-			int var = ((VarInsnNode) node).var;
-			frame.pushFloat(-frame.getFloat(var));
-			break;
-		}
-		case Opcodes.ILOAD: {
-			int var = ((VarInsnNode) node).var;
-			frame.pushInt(frame.getInt(var));
-			break;
-		}
-		case Opcodes.FLOAD: {
-			int var = ((VarInsnNode) node).var;
-			frame.pushFloat(frame.getFloat(var));
-			break;
-		}
-		case Opcodes.ALOAD: {
-			int var = ((VarInsnNode) node).var;
-			frame.pushRef(frame.getRef(var));
-			break;
-		}
-		case Opcodes.ISTORE: {
-			int val = frame.popInt();
-			int var = ((VarInsnNode) node).var;
-			frame.setInt(var, val);
-			break;
-		}
-		case Opcodes.FSTORE: {
-			float val = frame.popFloat();
-			int var = ((VarInsnNode) node).var;
-			frame.setFloat(var, val);
-			break;
-		}
-		case Opcodes.ASTORE: {
-			Object val = frame.popRef();
-			int var = ((VarInsnNode) node).var;
-			frame.setRef(var, val);
-			break;
-		}
-		case Opcodes.IINC: {
-			int var = ((IincInsnNode) node).var;
-			int incr = ((IincInsnNode) node).incr;
-			frame.setInt(var, frame.getInt(var) + incr);
-			break;
-		}
-		case Opcodes.IADD: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 + op1);
-			break;
-		}
-		case Opcodes.FADD: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushFloat(op2 + op1);
-			break;
-		}
-		case Opcodes.ISUB: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 - op1);
-			break;
-		}
-		case Opcodes.FSUB: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushFloat(op2 - op1);
-			break;
-		}
-		case Opcodes.IMUL: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 * op1);
-			break;
-		}
-		case Opcodes.FMUL: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushFloat(op2 * op1);
-			break;
-		}
-		case Opcodes.IDIV: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 / op1);
-			break;
-		}
-		case Opcodes.FDIV: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushFloat(op2 / op1);
-			break;
-		}
-		case Opcodes.IREM: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 % op1);
-			break;
-		}
-		case Opcodes.FREM: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushFloat(op2 % op1);
-			break;
-		}
-		case Opcodes.IAND: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 & op1);
-			break;
-		}
-		case Opcodes.IOR: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 | op1);
-			break;
-		}
-		case Opcodes.IXOR: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 ^ op1);
-			break;
-		}
-		case Opcodes.ISHL: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 << op1);
-			break;
-		}
-		case Opcodes.ISHR: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 >> op1);
-			break;
-		}
-		case Opcodes.IUSHR: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			frame.pushInt(op2 >>> op1);
-			break;
-		}
-		// IF**
-		case Opcodes.GOTO: {
-			ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFNULL: {
-			if(frame.popRef() == null)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFNONNULL: {
-			if(frame.popRef() != null)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFEQ: {
-			if(frame.popInt() == 0)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFNE: {
-			if(frame.popInt() != 0)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFLT: {
-			if(frame.popInt() < 0) {
-				ip = frame.envMethod.findLabel(ip);
-			}
-			break;
-		}
-		case Opcodes.IFLE: {
-			if(frame.popInt() <= 0)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFGT: {
-			if(frame.popInt() > 0)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IFGE: {
-			if(frame.popInt() >= 0)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.FCMPL: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushInt(op2 < op1 ? 1 : 0);
-			break;
-		}
-		case Opcodes.FCMPG: {
-			float op1 = frame.popFloat();
-			float op2 = frame.popFloat();
-			frame.pushInt(op2 > op1 ? 1 : 0);
-			break;
-		}
-		// IF_[IA]CMP**
-		case Opcodes.IF_ACMPEQ: {
-			Object op1 = frame.popRef();
-			Object op2 = frame.popRef();
-			if(op2 == op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ACMPNE: {
-			Object op1 = frame.popRef();
-			Object op2 = frame.popRef();
-			if(op2 != op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ICMPEQ: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			if(op2 == op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ICMPNE: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			if(op2 == op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ICMPGT: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			if(op2 > op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ICMPGE: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			if(op2 >= op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ICMPLT: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			if(op2 < op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.IF_ICMPLE: {
-			int op1 = frame.popInt();
-			int op2 = frame.popInt();
-			if(op2 <= op1)
-				ip = frame.envMethod.findLabel(ip);
-			break;
-		}
-		case Opcodes.CHECKCAST: {
-			// OK
-			Object v = frame.popRef();
-			frame.pushRef(v);
-			break;
-		}
-		// STACK
-		case Opcodes.SWAP: {
-			int t = frame.stackType[frame.stackPointer - 2];
-			int d = frame.stackData[frame.stackPointer - 2];
-
-			frame.stackType[frame.stackPointer - 2] = frame.stackType[frame.stackPointer - 1];
-			frame.stackData[frame.stackPointer - 2] = frame.stackData[frame.stackPointer - 1];
-
-			frame.stackType[frame.stackPointer - 1] = t;
-			frame.stackData[frame.stackPointer - 1] = d;
-			break;
-		}
-		case Opcodes.POP: {
-			frame.stackType[--frame.stackPointer] = ExecFrame.NONE;
-			break;
-		}
-		case Opcodes.POP2: {
-			frame.stackType[--frame.stackPointer] = ExecFrame.NONE;
-			frame.stackType[--frame.stackPointer] = ExecFrame.NONE;
-			break;
-		}
-		case Opcodes.DUP: {
-			frame.stackType[frame.stackPointer] = frame.stackType[frame.stackPointer - 1];
-			frame.stackData[frame.stackPointer] = frame.stackData[frame.stackPointer - 1];
-			frame.stackPointer++;
-			break;
-		}
-		case Opcodes.DUP_X1: {
-			int t1 = frame.stackType[--frame.stackPointer];
-			int d1 = frame.stackData[frame.stackPointer];
-			int t2 = frame.stackType[--frame.stackPointer];
-			int d2 = frame.stackData[frame.stackPointer];
-
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			frame.stackType[frame.stackPointer] = t2;
-			frame.stackData[frame.stackPointer++] = d2;
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			break;
-		}
-		case Opcodes.DUP_X2: {
-			int t1 = frame.stackType[--frame.stackPointer];
-			int d1 = frame.stackData[frame.stackPointer];
-			int t2 = frame.stackType[--frame.stackPointer];
-			int d2 = frame.stackData[frame.stackPointer];
-			int t3 = frame.stackType[--frame.stackPointer];
-			int d3 = frame.stackData[frame.stackPointer];
+		ExecState state = ExecState.RUNNING;
 
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			frame.stackType[frame.stackPointer] = t3;
-			frame.stackData[frame.stackPointer++] = d3;
-			frame.stackType[frame.stackPointer] = t2;
-			frame.stackData[frame.stackPointer++] = d2;
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			break;
-		}
-		case Opcodes.DUP2: {
-			frame.stackType[frame.stackPointer] = frame.stackType[frame.stackPointer - 2];
-			frame.stackData[frame.stackPointer] = frame.stackData[frame.stackPointer - 2];
-			frame.stackPointer++;
-			frame.stackType[frame.stackPointer] = frame.stackType[frame.stackPointer - 2];
-			frame.stackData[frame.stackPointer] = frame.stackData[frame.stackPointer - 2];
-			frame.stackPointer++;
-			break;
-		}
-		case Opcodes.DUP2_X1: {
-			int t1 = frame.stackType[--frame.stackPointer];
-			int d1 = frame.stackData[frame.stackPointer];
-			int t2 = frame.stackType[--frame.stackPointer];
-			int d2 = frame.stackData[frame.stackPointer];
-			int t3 = frame.stackType[--frame.stackPointer];
-			int d3 = frame.stackData[frame.stackPointer];
+		// all code is verified once the env is trusted, register code relies on untagged slots,
+		// also for a fiber that was prepared before the switch
+		if(fiber.slotType != null && frame.envMethod.envClass.env.isTrusted())
+			fiber.slotType = null;
 
-			frame.stackType[frame.stackPointer] = t2;
-			frame.stackData[frame.stackPointer++] = d2;
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			frame.stackType[frame.stackPointer] = t3;
-			frame.stackData[frame.stackPointer++] = d3;
-			frame.stackType[frame.stackPointer] = t2;
-			frame.stackData[frame.stackPointer++] = d2;
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			break;
-		}
-		case Opcodes.DUP2_X2: {
-			int t1 = frame.stackType[--frame.stackPointer];
-			int d1 = frame.stackData[frame.stackPointer];
-			int t2 = frame.stackType[--frame.stackPointer];
-			int d2 = frame.stackData[frame.stackPointer];
-			int t3 = frame.stackType[--frame.stackPointer];
-			int d3 = frame.stackData[frame.stackPointer];
-			int t4 = frame.stackType[--frame.stackPointer];
-			int d4 = frame.stackData[frame.stackPointer];
-
-			frame.stackType[frame.stackPointer] = t2;
-			frame.stackData[frame.stackPointer++] = d2;
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			frame.stackType[frame.stackPointer] = t4;
-			frame.stackData[frame.stackPointer++] = d4;
-			frame.stackType[frame.stackPointer] = t3;
-			frame.stackData[frame.stackPointer++] = d3;
-			frame.stackType[frame.stackPointer] = t2;
-			frame.stackData[frame.stackPointer++] = d2;
-			frame.stackType[frame.stackPointer] = t1;
-			frame.stackData[frame.stackPointer++] = d1;
-			break;
-		}
-		// INVOKE
-		case Opcodes.INVOKESTATIC: {
-			MethodInsnNode invoke = (MethodInsnNode) node;
-			if(invoke.owner.equals(Scheduler.class.getName().replace('.', '/'))) {
-				frame.instructionPointer++;
-				if(invoke.name.equals("yield")) {
-					Scheduler.signalYield(frame);
-					return ExecState.YIELDED;
+		// fuel is only checked at safepoints: backward branches and calls
+		loop: while (true) {
+			switch (code[ip]) {
+			case Bytecode.ICONST: {
+				frame.pushInt(code[ip + 1]);
+				ip += 2;
+				break;
+			}
+			case Bytecode.FCONST: {
+				frame.pushFloat(Float.intBitsToFloat(code[ip + 1]));
+				ip += 2;
+				break;
+			}
+			case Bytecode.ACONST: {
+				frame.pushRef(frame.envMethod.constants[code[ip + 1]]);
+				ip += 2;
+				break;
+			}
+			case Opcodes.I2F: {
+				frame.pushFloat(frame.popInt());
+				ip += 1;
+				break;
+			}
+			case Opcodes.F2I: {
+				frame.pushInt((int) frame.popFloat());
+				ip += 1;
+				break;
+			}
+			case Opcodes.I2B: {
+				frame.pushInt((byte) frame.popInt());
+				ip += 1;
+				break;
+			}
+			case Opcodes.I2C: {
+				frame.pushInt((char) frame.popInt());
+				ip += 1;
+				break;
+			}
+			case Opcodes.I2S: {
+				frame.pushInt((short) frame.popInt());
+				ip += 1;
+				break;
+			}
+			case Opcodes.INEG: {
+				frame.pushInt(-frame.popInt());
+				ip += 1;
+				break;
+			}
+			case Opcodes.FNEG: {
+				frame.pushFloat(-frame.popFloat());
+				ip += 1;
+				break;
+			}
+			case Opcodes.ILOAD: {
+				frame.pushInt(frame.getInt(code[ip + 1]));
+				ip += 2;
+				break;
+			}
+			case Opcodes.FLOAD: {
+				frame.pushFloat(frame.getFloat(code[ip + 1]));
+				ip += 2;
+				break;
+			}
+			case Opcodes.ALOAD: {
+				frame.pushRef(frame.getRef(code[ip + 1]));
+				ip += 2;
+				break;
+			}
+			case Opcodes.ISTORE: {
+				frame.setInt(code[ip + 1], frame.popInt());
+				ip += 2;
+				break;
+			}
+			case Opcodes.FSTORE: {
+				frame.setFloat(code[ip + 1], frame.popFloat());
+				ip += 2;
+				break;
+			}
+			case Opcodes.ASTORE: {
+				frame.setRef(code[ip + 1], frame.popRef());
+				ip += 2;
+				break;
+			}
+			case Opcodes.IINC: {
+				int var = code[ip + 1];
+				frame.setInt(var, frame.getInt(var) + code[ip + 2]);
+				ip += 3;
+				break;
+			}
+			case Opcodes.IADD: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 + op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FADD: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushFloat(op2 + op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.ISUB: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 - op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FSUB: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushFloat(op2 - op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IMUL: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 * op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FMUL: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushFloat(op2 * op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IDIV: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 / op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FDIV: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushFloat(op2 / op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IREM: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 % op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FREM: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushFloat(op2 % op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IAND: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 & op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IOR: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 | op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IXOR: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 ^ op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.ISHL: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 << op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.ISHR: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 >> op1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.IUSHR: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				frame.pushInt(op2 >>> op1);
+				ip += 1;
+				break;
+			}
+			// IF**
+			case Opcodes.GOTO: {
+				ip = code[ip + 1];
+				break;
+			}
+			case Opcodes.IFNULL: {
+				if(frame.popRef() == null)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFNONNULL: {
+				if(frame.popRef() != null)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFEQ: {
+				if(frame.popInt() == 0)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFNE: {
+				if(frame.popInt() != 0)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFLT: {
+				if(frame.popInt() < 0)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFLE: {
+				if(frame.popInt() <= 0)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFGT: {
+				if(frame.popInt() > 0)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IFGE: {
+				if(frame.popInt() >= 0)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.TABLESWITCH: {
+				int key = frame.popInt();
+				if(key < code[ip + 1] || key > code[ip + 2])
+					ip = code[ip + 3];
+				else
+					ip = code[ip + 4 + key - code[ip + 1]];
+				break;
+			}
+			case Opcodes.LOOKUPSWITCH: {
+				int key = frame.popInt();
+				int target = code[ip + 2];
+				for(int lo = 0, hi = code[ip + 1] - 1; lo <= hi;) {
+					int mid = (lo + hi) >>> 1;
+					int midKey = code[ip + 3 + mid * 2];
+					if(midKey < key) {
+						lo = mid + 1;
+					}
+					else if(midKey > key) {
+						hi = mid - 1;
+					}
+					else {
+						target = code[ip + 4 + mid * 2];
+						break;
+					}
 				}
-				if(invoke.name.equals("sleep")) {
-					Scheduler.signalSleep(frame, frame.popInt());
-					return ExecState.SLEEPING;
+				ip = target;
+				break;
+			}
+			case Opcodes.FCMPL: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushInt(op2 > op1 ? 1 : op2 == op1 ? 0 : -1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FCMPG: {
+				float op1 = frame.popFloat();
+				float op2 = frame.popFloat();
+				frame.pushInt(op2 < op1 ? -1 : op2 == op1 ? 0 : 1);
+				ip += 1;
+				break;
+			}
+			// IF_[IA]CMP**
+			case Opcodes.IF_ACMPEQ: {
+				Object op1 = frame.popRef();
+				Object op2 = frame.popRef();
+				if(op2 == op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ACMPNE: {
+				Object op1 = frame.popRef();
+				Object op2 = frame.popRef();
+				if(op2 != op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ICMPEQ: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				if(op2 == op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ICMPNE: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				if(op2 != op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ICMPGT: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				if(op2 > op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ICMPGE: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				if(op2 >= op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ICMPLT: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				if(op2 < op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			case Opcodes.IF_ICMPLE: {
+				int op1 = frame.popInt();
+				int op2 = frame.popInt();
+				if(op2 <= op1)
+					ip = code[ip + 1];
+				else
+					ip += 2;
+				break;
+			}
+			// STACK
+			case Opcodes.SWAP: {
+				frame.swap();
+				ip += 1;
+				break;
+			}
+			case Opcodes.POP: {
+				frame.pop();
+				ip += 1;
+				break;
+			}
+			case Opcodes.POP2: {
+				frame.pop();
+				frame.pop();
+				ip += 1;
+				break;
+			}
+			case Opcodes.DUP: {
+				frame.dup(1, 0);
+				ip += 1;
+				break;
+			}
+			case Opcodes.DUP_X1: {
+				frame.dup(1, 1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.DUP_X2: {
+				frame.dup(1, 2);
+				ip += 1;
+				break;
+			}
+			case Opcodes.DUP2: {
+				frame.dup(2, 0);
+				ip += 1;
+				break;
+			}
+			case Opcodes.DUP2_X1: {
+				frame.dup(2, 1);
+				ip += 1;
+				break;
+			}
+			case Opcodes.DUP2_X2: {
+				frame.dup(2, 2);
+				ip += 1;
+				break;
+			}
+			// INVOKE
+			case Bytecode.YIELD: {
+				ip += 1;
+				state = ExecState.YIELDED;
+				Scheduler.signalYield(fiber);
+				break loop;
+			}
+			case Bytecode.SLEEP: {
+				ip += 1;
+				state = ExecState.SLEEPING;
+				Scheduler.signalSleep(fiber, frame.popInt());
+				break loop;
+			}
+			case Bytecode.SUSPEND: {
+				ip += 1;
+				state = ExecState.SUSPENDED;
+				Scheduler.signalSuspend(fiber);
+				break loop;
+			}
+			case Bytecode.SAFEPOINT: {
+				ip += 2;
+				if((fuel -= code[ip - 1]) <= 0)
+					break loop;
+				break;
+			}
+			case Bytecode.SUSPEND_ON: {
+				ip += 1;
+				state = ExecState.SUSPENDED;
+				Scheduler.signalSuspend(fiber, frame.popRef());
+				break loop;
+			}
+			case Bytecode.AWAIT: {
+				// the instruction is retried on resume, so early wake-ups are harmless
+				Object stage = frame.peekRef(0);
+				if(stage == null || ((CompletionStage<?>) stage).toCompletableFuture().isDone()) {
+					ip += 1;
+					break;
 				}
-				if(invoke.name.equals("suspend")) {
-					Scheduler.signalSuspend(frame);
-					return ExecState.SUSPENDED;
+				state = ExecState.SUSPENDED;
+				Scheduler.signalAwait(fiber, ((CompletionStage<?>) stage).toCompletableFuture());
+				break loop;
+			}
+			case Bytecode.ECHO_INT: {
+				Scheduler.signalEcho(frame, Integer.valueOf(frame.popInt()));
+				ip += 1;
+				break;
+			}
+			case Bytecode.ECHO_FLOAT: {
+				Scheduler.signalEcho(frame, Float.valueOf(frame.popFloat()));
+				ip += 1;
+				break;
+			}
+			case Bytecode.ECHO_REF: {
+				Scheduler.signalEcho(frame, frame.popRef());
+				ip += 1;
+				break;
+			}
+			case Opcodes.INVOKESTATIC: {
+				StaticCallSite site = (StaticCallSite) frame.envMethod.constants[code[ip + 1]];
+				if(site.invokeNative(frame)) {
+					ip += 2;
 				}
-				if(invoke.name.equals("echo")) {
-					if(frame.peekType() == ExecFrame.INT)
-						Scheduler.signalEcho(frame, Integer.valueOf(frame.popInt()));
-					else if(frame.peekType() == ExecFrame.FLOAT)
-						Scheduler.signalEcho(frame, Float.valueOf(frame.popFloat()));
-					else if(frame.peekType() == ExecFrame.REF)
-						Scheduler.signalEcho(frame, frame.popRef());
-					else
-						throw new IllegalStateException();
-					return ExecState.RUNNING;
+				else {
+					frame.instructionPointer = ip + 2;
+					frame = frame.invoke(site.target());
+					code = frame.envMethod.code;
+					ip = 0;
 				}
-				throw new IllegalStateException();
+				if((fuel -= CALL_FUEL) <= 0)
+					break loop;
+				break;
+			}
+			case Opcodes.INVOKEVIRTUAL: {
+				((VirtualCallSite) frame.envMethod.constants[code[ip + 1]]).invoke(frame);
+				ip += 2;
+				if((fuel -= CALL_FUEL) <= 0)
+					break loop;
+				break;
+			}
+			// fields
+			case Opcodes.GETFIELD: {
+				((FieldSite) frame.envMethod.constants[code[ip + 1]]).get(frame);
+				ip += 2;
+				break;
+			}
+			case Opcodes.PUTFIELD: {
+				((FieldSite) frame.envMethod.constants[code[ip + 1]]).put(frame);
+				ip += 2;
+				break;
+			}
+			case Opcodes.GETSTATIC: {
+				((FieldSite) frame.envMethod.constants[code[ip + 1]]).getStatic(frame);
+				ip += 2;
+				break;
+			}
+			case Opcodes.PUTSTATIC: {
+				((FieldSite) frame.envMethod.constants[code[ip + 1]]).putStatic(frame);
+				ip += 2;
+				break;
+			}
+			// arrays
+			case Opcodes.NEWARRAY: {
+				frame.pushRef(newArray(code[ip + 1], frame.popInt()));
+				ip += 2;
+				break;
+			}
+			case Opcodes.ANEWARRAY: {
+				frame.pushRef(Array.newInstance((Class<?>) frame.envMethod.constants[code[ip + 1]], frame.popInt()));
+				ip += 2;
+				break;
+			}
+			case Opcodes.MULTIANEWARRAY: {
+				int[] dimensions = new int[code[ip + 2]];
+				for(int d = dimensions.length - 1; d >= 0; d--)
+					dimensions[d] = frame.popInt();
+				frame.pushRef(Array.newInstance((Class<?>) frame.envMethod.constants[code[ip + 1]], dimensions));
+				ip += 3;
+				break;
+			}
+			case Opcodes.ARRAYLENGTH: {
+				frame.pushInt(Array.getLength(frame.popRef()));
+				ip += 1;
+				break;
+			}
+			case Opcodes.IALOAD: {
+				int index = frame.popInt();
+				frame.pushInt(((int[]) frame.popRef())[index]);
+				ip += 1;
+				break;
+			}
+			case Opcodes.FALOAD: {
+				int index = frame.popInt();
+				frame.pushFloat(((float[]) frame.popRef())[index]);
+				ip += 1;
+				break;
+			}
+			case Opcodes.AALOAD: {
+				int index = frame.popInt();
+				frame.pushRef(((Object[]) frame.popRef())[index]);
+				ip += 1;
+				break;
+			}
+			case Opcodes.BALOAD:
+			case Opcodes.CALOAD:
+			case Opcodes.SALOAD: {
+				int index = frame.popInt();
+				frame.pushInt(loadNarrow(frame.popRef(), index));
+				ip += 1;
+				break;
+			}
+			case Opcodes.IASTORE: {
+				int value = frame.popInt();
+				int index = frame.popInt();
+				((int[]) frame.popRef())[index] = value;
+				ip += 1;
+				break;
+			}
+			case Opcodes.FASTORE: {
+				float value = frame.popFloat();
+				int index = frame.popInt();
+				((float[]) frame.popRef())[index] = value;
+				ip += 1;
+				break;
+			}
+			case Opcodes.AASTORE: {
+				Object value = frame.popRef();
+				int index = frame.popInt();
+				((Object[]) frame.popRef())[index] = value;
+				ip += 1;
+				break;
+			}
+			case Opcodes.BASTORE:
+			case Opcodes.CASTORE:
+			case Opcodes.SASTORE: {
+				int value = frame.popInt();
+				int index = frame.popInt();
+				storeNarrow(frame.popRef(), index, value);
+				ip += 1;
+				break;
+			}
+			// superinstructions
+			case Bytecode.ILOAD_ILOAD_IF_ICMPEQ: {
+				if(frame.getInt(code[ip + 1]) == frame.getInt(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.ILOAD_ILOAD_IF_ICMPNE: {
+				if(frame.getInt(code[ip + 1]) != frame.getInt(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.ILOAD_ILOAD_IF_ICMPLT: {
+				if(frame.getInt(code[ip + 1]) < frame.getInt(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.ILOAD_ILOAD_IF_ICMPGE: {
+				if(frame.getInt(code[ip + 1]) >= frame.getInt(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.ILOAD_ILOAD_IF_ICMPGT: {
+				if(frame.getInt(code[ip + 1]) > frame.getInt(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.ILOAD_ILOAD_IF_ICMPLE: {
+				if(frame.getInt(code[ip + 1]) <= frame.getInt(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.IADD_CONST: {
+				frame.setInt(code[ip + 3], frame.getInt(code[ip + 1]) + code[ip + 2]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.IINC_GOTO: {
+				int var = code[ip + 1];
+				frame.setInt(var, frame.getInt(var) + code[ip + 2]);
+				ip = code[ip + 3];
+				break;
+			}
+			case Bytecode.ALOAD_INVOKEVIRTUAL: {
+				frame.pushRef(frame.getRef(code[ip + 1]));
+				((VirtualCallSite) frame.envMethod.constants[code[ip + 2]]).invoke(frame);
+				ip += 3;
+				if((fuel -= CALL_FUEL) <= 0)
+					break loop;
+				break;
+			}
+			// register tier
+			case Bytecode.R_SP: {
+				frame.stackPointer = frame.stackBase + code[ip + 1];
+				ip += 2;
+				break;
+			}
+			case Bytecode.R_MOV: {
+				fiber.move(frame.localBase + code[ip + 2], frame.localBase + code[ip + 1]);
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_CONST: {
+				frame.setInt(code[ip + 1], code[ip + 2]);
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_ACONST: {
+				frame.setRef(code[ip + 1], frame.envMethod.constants[code[ip + 2]]);
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_IADD: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) + frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_ISUB: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) - frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IMUL: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) * frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IDIV: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) / frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IREM: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) % frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IAND: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) & frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IOR: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) | frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IXOR: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) ^ frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_ISHL: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) << frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_ISHR: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) >> frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IUSHR: {
+				frame.setInt(code[ip + 1], frame.getInt(code[ip + 2]) >>> frame.getInt(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FADD: {
+				frame.setFloat(code[ip + 1], frame.getFloat(code[ip + 2]) + frame.getFloat(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FSUB: {
+				frame.setFloat(code[ip + 1], frame.getFloat(code[ip + 2]) - frame.getFloat(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FMUL: {
+				frame.setFloat(code[ip + 1], frame.getFloat(code[ip + 2]) * frame.getFloat(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FDIV: {
+				frame.setFloat(code[ip + 1], frame.getFloat(code[ip + 2]) / frame.getFloat(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FREM: {
+				frame.setFloat(code[ip + 1], frame.getFloat(code[ip + 2]) % frame.getFloat(code[ip + 3]));
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_INEG: {
+				frame.setInt(code[ip + 1], -frame.getInt(code[ip + 2]));
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_FNEG: {
+				frame.setFloat(code[ip + 1], -frame.getFloat(code[ip + 2]));
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_I2F: {
+				frame.setFloat(code[ip + 1], (float) frame.getInt(code[ip + 2]));
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_F2I: {
+				frame.setInt(code[ip + 1], (int) frame.getFloat(code[ip + 2]));
+				ip += 3;
+				break;
+			}
+			case Bytecode.R_FCMPL: {
+				float op2 = frame.getFloat(code[ip + 2]);
+				float op1 = frame.getFloat(code[ip + 3]);
+				frame.setInt(code[ip + 1], op2 > op1 ? 1 : op2 == op1 ? 0 : -1);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FCMPG: {
+				float op2 = frame.getFloat(code[ip + 2]);
+				float op1 = frame.getFloat(code[ip + 3]);
+				frame.setInt(code[ip + 1], op2 < op1 ? -1 : op2 == op1 ? 0 : 1);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IFEQ: {
+				if(frame.getInt(code[ip + 1]) == 0)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFNE: {
+				if(frame.getInt(code[ip + 1]) != 0)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFLT: {
+				if(frame.getInt(code[ip + 1]) < 0)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFGE: {
+				if(frame.getInt(code[ip + 1]) >= 0)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFGT: {
+				if(frame.getInt(code[ip + 1]) > 0)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFLE: {
+				if(frame.getInt(code[ip + 1]) <= 0)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFNULL: {
+				if(frame.getRef(code[ip + 1]) == null)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IFNONNULL: {
+				if(frame.getRef(code[ip + 1]) != null)
+					ip = code[ip + 2];
+				else
+					ip += 3;
+				break;
+			}
+			case Bytecode.R_IF_ACMPEQ: {
+				if(frame.getRef(code[ip + 1]) == frame.getRef(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.R_IF_ACMPNE: {
+				if(frame.getRef(code[ip + 1]) != frame.getRef(code[ip + 2]))
+					ip = code[ip + 3];
+				else
+					ip += 4;
+				break;
+			}
+			case Bytecode.R_IRETURN: {
+				int val = frame.getInt(code[ip + 1]);
+				frame = frame.leave();
+				frame.pushInt(val);
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
+			}
+			case Bytecode.R_FRETURN: {
+				float val = frame.getFloat(code[ip + 1]);
+				frame = frame.leave();
+				frame.pushFloat(val);
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
+			}
+			case Bytecode.R_ARETURN: {
+				Object val = frame.getRef(code[ip + 1]);
+				frame = frame.leave();
+				frame.pushRef(val);
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
+			}
+			case Bytecode.R_IALOAD: {
+				frame.setInt(code[ip + 1], ((int[]) frame.getRef(code[ip + 2]))[frame.getInt(code[ip + 3])]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FALOAD: {
+				frame.setFloat(code[ip + 1], ((float[]) frame.getRef(code[ip + 2]))[frame.getInt(code[ip + 3])]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_AALOAD: {
+				frame.setRef(code[ip + 1], ((Object[]) frame.getRef(code[ip + 2]))[frame.getInt(code[ip + 3])]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_IASTORE: {
+				((int[]) frame.getRef(code[ip + 1]))[frame.getInt(code[ip + 2])] = frame.getInt(code[ip + 3]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_FASTORE: {
+				((float[]) frame.getRef(code[ip + 1]))[frame.getInt(code[ip + 2])] = frame.getFloat(code[ip + 3]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_AASTORE: {
+				((Object[]) frame.getRef(code[ip + 1]))[frame.getInt(code[ip + 2])] = frame.getRef(code[ip + 3]);
+				ip += 4;
+				break;
+			}
+			case Bytecode.R_ARRAYLENGTH: {
+				frame.setInt(code[ip + 1], Array.getLength(frame.getRef(code[ip + 2])));
+				ip += 3;
+				break;
+			}
+			// *RETURN
+			case Opcodes.RETURN: {
+				frame = frame.leave();
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
+			}
+			case Opcodes.IRETURN: {
+				int val = frame.popInt();
+				frame = frame.leave();
+				frame.pushInt(val);
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
+			}
+			case Opcodes.FRETURN: {
+				float val = frame.popFloat();
+				frame = frame.leave();
+				frame.pushFloat(val);
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
+			}
+			case Opcodes.ARETURN: {
+				Object val = frame.popRef();
+				frame = frame.leave();
+				frame.pushRef(val);
+				if(frame == fiber.root) {
+					state = ExecState.TERMINATED;
+					break loop;
+				}
+				code = frame.envMethod.code;
+				ip = frame.instructionPointer;
+				break;
 			}
 
-			frame.envMethod.envClass.env.invokeStatic(frame, invoke);
-			break;
-		}
-		case Opcodes.INVOKEVIRTUAL: {
-			frame.envMethod.envClass.env.invokeVirtual(frame, (MethodInsnNode) node);
-			break;
-		}
-		// *RETURN
-		case Opcodes.RETURN: {
-			frame.callsite.subframe = null;
-			frame.instructionPointer = -1;
-			return ExecState.TERMINATED;
-		}
-		case Opcodes.IRETURN: {
-			int val = frame.popInt();
-			frame.callsite.pushInt(val);
-			frame.callsite.subframe = null;
-			frame.instructionPointer = -1;
-			return ExecState.TERMINATED;
-		}
-		case Opcodes.FRETURN: {
-			float val = frame.popFloat();
-			frame.callsite.pushFloat(val);
-			frame.callsite.subframe = null;
-			frame.instructionPointer = -1;
-			return ExecState.TERMINATED;
-		}
-		case Opcodes.ARETURN: {
-			Object val = frame.popRef();
-			frame.callsite.pushRef(val);
-			frame.callsite.subframe = null;
-			frame.instructionPointer = -1;
-			return ExecState.TERMINATED;
+			default:
+				throw new UnsupportedOperationException("opcode=" + code[ip]);
+			}
 		}
 
-		case -1:
-			break;
+		frame.instructionPointer = ip;
+		fiber.top = frame;
+		return state;
+	}
 
+	private static Object newArray(int type, int length) {
+		switch (type) {
+		case Opcodes.T_BOOLEAN:
+			return new boolean[length];
+		case Opcodes.T_BYTE:
+			return new byte[length];
+		case Opcodes.T_CHAR:
+			return new char[length];
+		case Opcodes.T_SHORT:
+			return new short[length];
+		case Opcodes.T_INT:
+			return new int[length];
+		case Opcodes.T_FLOAT:
+			return new float[length];
 		default:
-			throw new UnsupportedOperationException("opcode=" + node.getOpcode() + " " + node.getClass().getSimpleName());
+			throw new UnsupportedOperationException("newarray=" + type);
 		}
+	}
 
-		if(ip == ipOld)
-			frame.instructionPointer++;
-		else
-			frame.instructionPointer = ip;
+	private static int loadNarrow(Object array, int index) {
+		// BALOAD serves both byte[] and boolean[]
+		if(array instanceof byte[])
+			return ((byte[]) array)[index];
+		if(array instanceof char[])
+			return ((char[]) array)[index];
+		if(array instanceof short[])
+			return ((short[]) array)[index];
+		return ((boolean[]) array)[index] ? 1 : 0;
+	}
 
-		return ExecState.RUNNING;
+	private static void storeNarrow(Object array, int index, int value) {
+		if(array instanceof byte[])
+			((byte[]) array)[index] = (byte) value;
+		else if(array instanceof char[])
+			((char[]) array)[index] = (char) value;
+		else if(array instanceof short[])
+			((short[]) array)[index] = (short) value;
+		else
+			((boolean[]) array)[index] = (value & 1) != 0;
 	}
 }
@@ -0,0 +1,65 @@
+package net.indiespot.script.interp;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.objectweb.asm.util.Printer;
+
+public class PairProfile {
+	// adjacent opcodes as the decoder reads them, before fusion, see Env.setSuperinstructions
+	private final long[] counts = new long[256 * 256];
+
+	synchronized void record(int first, int second) {
+		counts[(first << 8) | second]++;
+	}
+
+	public synchronized long count(int first, int second) {
+		return counts[(first << 8) | second];
+	}
+
+	public synchronized void reset() {
+		for(int i = 0; i < counts.length; i++)
+			counts[i] = 0L;
+	}
+
+	public synchronized List<int[]> top(int n) {
+		// {first, second} pairs, most frequent first
+		List<int[]> pairs = new ArrayList<>();
+		for(int i = 0; i < counts.length; i++)
+			if(counts[i] != 0L)
+				pairs.add(new int[] { i >> 8, i & 0xFF });
+		Collections.sort(pairs, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Long.compare(PairProfile.this.count(b[0], b[1]), PairProfile.this.count(a[0], a[1]));
+			}
+		});
+		return pairs.subList(0, Math.min(n, pairs.size()));
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int[] pair : this.top(16))
+			sb.append(name(pair[0])).append(' ').append(name(pair[1])).append(' ').append(this.count(pair[0], pair[1])).append('\n');
+		return sb.toString();
+	}
+
+	static String name(int opcode) {
+		if(opcode < Printer.OPCODES.length && Printer.OPCODES[opcode] != null && !Printer.OPCODES[opcode].isEmpty())
+			return Printer.OPCODES[opcode];
+		for(Field field : Bytecode.class.getDeclaredFields()) {
+			try {
+				if(field.getType() == int.class && field.getInt(null) == opcode)
+					return field.getName();
+			}
+			catch (IllegalAccessException e) {
+				break;
+			}
+		}
+		return "0x" + Integer.toHexString(opcode);
+	}
+}
@@ -0,0 +1,350 @@
+package net.indiespot.script.interp;
+
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BooleanSupplier;
+
+public class ParallelScheduler {
+	private final Clock clock;
+	private final Scheduler[] shards;
+	private final Inbox signals = new Inbox();
+	private final ShardBatch[] batches;
+	private final Thread[] workers;
+	private final CyclicBarrier tickStart;
+	private final CyclicBarrier tickEnd;
+	private volatile boolean shutdown;
+	private volatile Throwable failure;
+	private boolean fastForward;
+	private boolean bounded;
+	private long deadline;
+	private final AtomicInteger nextShard = new AtomicInteger();
+
+	private static final AtomicReferenceFieldUpdater<ScheduledTask, Scheduler> home_updater = AtomicReferenceFieldUpdater.newUpdater(ScheduledTask.class, Scheduler.class, "home");
+
+	public ParallelScheduler(int threads) {
+		this(threads, Clock.SYSTEM);
+	}
+
+	public ParallelScheduler(int threads, Clock clock) {
+		if(threads < 1)
+			throw new IllegalArgumentException("threads: " + threads);
+
+		this.clock = clock;
+		shards = new Scheduler[threads];
+		batches = new ShardBatch[threads];
+		for(int i = 0; i < threads; i++) {
+			shards[i] = new Scheduler(clock);
+			batches[i] = new ShardBatch();
+		}
+
+		// the thread calling tick() works on shard 0
+		tickStart = new CyclicBarrier(threads);
+		tickEnd = new CyclicBarrier(threads);
+		workers = new Thread[threads - 1];
+		for(int i = 1; i < threads; i++) {
+			final int shard = i;
+			workers[i - 1] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ParallelScheduler.this.work(shard);
+				}
+			}, "script-worker-" + i);
+			workers[i - 1].setDaemon(true);
+			workers[i - 1].start();
+		}
+	}
+
+	public int shards() {
+		return shards.length;
+	}
+
+	public void start(ExecFrame frame) {
+		this.nextShard().start(frame);
+	}
+
+	public ScheduledTask executeLater(Runnable task, int delay) {
+		return this.nextShard().executeLater(task, delay);
+	}
+
+	public ScheduledTask executeAt(Runnable task, long time) {
+		return this.nextShard().executeAt(task, time);
+	}
+
+	public boolean cancel(ScheduledTask task) {
+		Scheduler owner = task.scheduler;
+		return owner != null && owner.cancel(task);
+	}
+
+	private Scheduler nextShard() {
+		return shards[(nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+	}
+
+	// thread-safe submission, all messages for a task go through the inbox of its home shard,
+	// so that they are applied in the order they were posted
+
+	private Scheduler home(ScheduledTask task) {
+		Scheduler home = task.home;
+		if(home == null && !home_updater.compareAndSet(task, null, home = this.nextShard()))
+			home = task.home;
+		return home;
+	}
+
+	public <T> FiberFuture<T> spawn(EnvMethod envMethod, Object... args) {
+		// the future cancels through the scheduler it was created with
+		Scheduler home = this.nextShard();
+		FiberFuture<T> future = new FiberFuture<>(home, envMethod, args);
+		future.frame().fiber.home = home;
+		home.submit(future.frame());
+		return future;
+	}
+
+	public void submit(ExecFrame frame) {
+		this.home(frame.fiber).submit(frame);
+	}
+
+	public ScheduledTask submit(Runnable task, int delay) {
+		ScheduledTask scheduled = ScheduledTask.wrap(task);
+		return this.home(scheduled).submit(scheduled, delay);
+	}
+
+	public void submitWake(ExecFrame frame) {
+		this.home(frame.fiber).submitWake(frame);
+	}
+
+	public void submitCancel(ExecFrame frame) {
+		this.home(frame.fiber).submitCancel(frame);
+	}
+
+	public void submitCancel(ScheduledTask task) {
+		this.home(task).submitCancel(task);
+	}
+
+	// event keys, waiters are registered with the shard they suspended on
+
+	public int signal(Object key) {
+		for(Scheduler shard : shards) {
+			int woken = shard.signal(key);
+			if(woken != 0)
+				return woken;
+		}
+		return 0;
+	}
+
+	public int signalAll(Object key) {
+		int woken = 0;
+		for(Scheduler shard : shards)
+			woken += shard.signalAll(key);
+		return woken;
+	}
+
+	public int waiting(Object key) {
+		int waiting = 0;
+		for(Scheduler shard : shards)
+			waiting += shard.waiting(key);
+		return waiting;
+	}
+
+	public void submitSignal(Object key) {
+		signals.post(Inbox.SIGNAL, key);
+	}
+
+	public void submitSignalAll(Object key) {
+		signals.post(Inbox.SIGNAL_ALL, key);
+	}
+
+	private void drainSignals() {
+		if(signals.isEmpty())
+			return;
+		for(Inbox.Message message = signals.drain(); message != null; message = message.next) {
+			if(message.kind == Inbox.SIGNAL)
+				this.signal(message.key);
+			else
+				this.signalAll(message.key);
+		}
+	}
+
+	public void tick() {
+		this.tick(Long.MAX_VALUE);
+	}
+
+	public int tick(long budgetNanos) {
+		// returns the number of due tasks deferred to the next tick
+		if(shutdown)
+			throw new IllegalStateException("shutdown");
+
+		this.drainSignals();
+		if(fastForward)
+			this.fastForward();
+		long now = clock.millis();
+		for(int i = 0; i < shards.length; i++)
+			batches[i].fill(shards[i].beginTick(now));
+		bounded = (budgetNanos != Long.MAX_VALUE);
+		deadline = bounded ? System.nanoTime() + budgetNanos : 0L;
+
+		this.await(tickStart);
+		this.runShard(0);
+		this.await(tickEnd);
+
+		int deferred = 0;
+		for(int i = 0; i < shards.length; i++)
+			deferred += batches[i].defer(shards[i]);
+
+		Throwable error = failure;
+		if(error != null) {
+			failure = null;
+			if(error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			if(error instanceof Error)
+				throw (Error) error;
+			throw new IllegalStateException(error);
+		}
+		return deferred;
+	}
+
+	public void setFastForward(boolean enabled) {
+		if(enabled && !(clock instanceof VirtualClock))
+			throw new IllegalStateException("fast-forward requires a VirtualClock");
+		this.fastForward = enabled;
+	}
+
+	private void fastForward() {
+		long next = Long.MAX_VALUE;
+		for(int i = 0; i < shards.length; i++) {
+			if(!shards[i].isIdle())
+				return;
+			next = Math.min(next, shards[i].nextDeadline());
+		}
+		if(next != Long.MAX_VALUE)
+			((VirtualClock) clock).advanceTo(next);
+	}
+
+	public void awaitNextDeadline() {
+		// parks until the earliest timer of any shard expires or work is submitted
+		long next = Long.MAX_VALUE;
+		for(int i = 0; i < shards.length; i++) {
+			if(!shards[i].isIdle())
+				return;
+			next = Math.min(next, shards[i].nextDeadline());
+		}
+		// only wall clocks advance while parked
+		if(next != Long.MAX_VALUE && !clock.isWallBased())
+			return;
+
+		Thread thread = Thread.currentThread();
+		for(Scheduler shard : shards)
+			shard.inbox().waiter = thread;
+		signals.waiter = thread;
+		try {
+			boolean empty = signals.isEmpty();
+			for(Scheduler shard : shards)
+				empty &= shard.inbox().isEmpty();
+			if(empty)
+				Scheduler.park(next == Long.MAX_VALUE ? next : next - clock.millis());
+		}
+		finally {
+			for(Scheduler shard : shards)
+				shard.inbox().waiter = null;
+			signals.waiter = null;
+		}
+	}
+
+	public void runUntil(BooleanSupplier condition) {
+		while (!condition.getAsBoolean()) {
+			this.tick();
+			if(condition.getAsBoolean())
+				break;
+			this.awaitNextDeadline();
+		}
+	}
+
+	public void wakeup() {
+		for(Scheduler shard : shards)
+			shard.wakeup();
+	}
+
+	public void shutdown() {
+		if(shutdown)
+			return;
+		shutdown = true;
+		this.await(tickStart);
+	}
+
+	// workers
+
+	private void work(int shard) {
+		while (true) {
+			this.await(tickStart);
+			if(shutdown)
+				return;
+			this.runShard(shard);
+			this.await(tickEnd);
+		}
+	}
+
+	private void runShard(int shard) {
+		// fibers rescheduled from here stay with this shard
+		Scheduler.bind(shards[shard]);
+		try {
+			this.drain(batches[shard]);
+			for(int i = 1; i < batches.length; i++)
+				this.drain(batches[(shard + i) % batches.length]);
+		}
+		finally {
+			Scheduler.bind(null);
+		}
+	}
+
+	private void drain(ShardBatch batch) {
+		for(int i; (!bounded || System.nanoTime() - deadline < 0L) && (i = batch.cursor.getAndIncrement()) < batch.length;) {
+			ScheduledTask task = batch.tasks[i];
+			batch.tasks[i] = null;
+			try {
+				task.run();
+			}
+			catch (Throwable t) {
+				// the rest of the tick still runs, the first failure is rethrown by tick()
+				if(failure == null)
+					failure = t;
+			}
+		}
+	}
+
+	private void await(CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		}
+		catch (InterruptedException | BrokenBarrierException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class ShardBatch {
+		ScheduledTask[] tasks = new ScheduledTask[64];
+		int length;
+		final AtomicInteger cursor = new AtomicInteger();
+
+		int defer(Scheduler shard) {
+			// tasks the tick had no time for go back to their shard, where they can still be cancelled
+			int deferred = 0;
+			for(int i = Math.min(cursor.get(), length); i < length; i++) {
+				shard.defer(tasks[i]);
+				tasks[i] = null;
+				deferred++;
+			}
+			length = 0;
+			return deferred;
+		}
+
+		void fill(TaskList list) {
+			for(ScheduledTask task; (task = list.poll()) != null;) {
+				if(length == tasks.length)
+					tasks = Arrays.copyOf(tasks, length * 2);
+				tasks[length++] = task;
+			}
+			cursor.set(0);
+		}
+	}
+}
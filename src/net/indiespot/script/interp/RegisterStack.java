@@ -0,0 +1,214 @@
+package net.indiespot.script.interp;
+
+import java.util.Arrays;
+
+class RegisterStack {
+	// the operand stack at translation time, an entry is a register or a constant not yet written to its own slot
+	private static final int REG = 0;
+	private static final int CONST = 1;
+	private static final int ACONST = 2;
+
+	private final int maxLocals;
+	private final int[] kind;
+	private final int[] value;
+	private int depth;
+
+	// the depth the frame's stackPointer was last set to, -1 if unknown
+	private int synced = -1;
+
+	// the destination operand of the last instruction, so a following store can take over its result
+	private int lastDst = -1;
+	private int lastEnd = -1;
+
+	// the end of the last IINC, so a GOTO right after it can be fused
+	private int iincEnd = -1;
+
+	// the decoder's output, handed over around each translated instruction
+	int[] out;
+	int len;
+
+	RegisterStack(int maxLocals, int maxStack) {
+		this.maxLocals = maxLocals;
+		this.kind = new int[maxStack];
+		this.value = new int[maxStack];
+	}
+
+	void emit(int word) {
+		if(len == out.length)
+			out = Arrays.copyOf(out, len * 2);
+		out[len++] = word;
+	}
+
+	int depth() {
+		return depth;
+	}
+
+	int slot(int position) {
+		return maxLocals + position;
+	}
+
+	void reset(int depth, boolean synced) {
+		// every entry in its own slot, as after a stack instruction or at a jump target
+		this.depth = depth;
+		for(int p = 0; p < depth; p++) {
+			kind[p] = REG;
+			value[p] = this.slot(p);
+		}
+		this.synced = synced ? depth : -1;
+		this.lastEnd = -1;
+		this.iincEnd = -1;
+	}
+
+	void pushReg(int reg) {
+		kind[depth] = REG;
+		value[depth++] = reg;
+	}
+
+	void pushConst(int bits) {
+		kind[depth] = CONST;
+		value[depth++] = bits;
+	}
+
+	void pushAConst(int constant) {
+		kind[depth] = ACONST;
+		value[depth++] = constant;
+	}
+
+	int pushResult() {
+		// a result is written to the slot of its stack position
+		int dst = this.slot(depth);
+		this.pushReg(dst);
+		return dst;
+	}
+
+	void pop(int count) {
+		depth -= count;
+	}
+
+	void dup() {
+		kind[depth] = kind[depth - 1];
+		value[depth] = value[depth - 1];
+		depth++;
+	}
+
+	boolean swap() {
+		// an entry may only read the stack slot below it, which a swap would break
+		if(this.isStackSlot(depth - 1) || this.isStackSlot(depth - 2))
+			return false;
+		int k = kind[depth - 1];
+		int v = value[depth - 1];
+		kind[depth - 1] = kind[depth - 2];
+		value[depth - 1] = value[depth - 2];
+		kind[depth - 2] = k;
+		value[depth - 2] = v;
+		return true;
+	}
+
+	private boolean isStackSlot(int position) {
+		return kind[position] == REG && value[position] >= maxLocals;
+	}
+
+	boolean isConst(int fromTop) {
+		return kind[depth - 1 - fromTop] == CONST;
+	}
+
+	int constValue(int fromTop) {
+		return value[depth - 1 - fromTop];
+	}
+
+	// emission
+
+	int operand(int fromTop) {
+		// the register an entry can be read from, constants are written to their slot first
+		int p = depth - 1 - fromTop;
+		if(kind[p] != REG)
+			this.materialize(p);
+		return value[p];
+	}
+
+	void flush(int from, int to) {
+		for(int p = from; p < to; p++)
+			this.materialize(p);
+	}
+
+	void flushBelow(int fromTop) {
+		this.flush(0, depth - fromTop);
+	}
+
+	void sync() {
+		// before a stack instruction, entries in their slots and stackPointer above them
+		this.flush(0, depth);
+		if(synced != depth) {
+			this.emit(Bytecode.R_SP);
+			this.emit(depth);
+			synced = depth;
+		}
+	}
+
+	void spill(int reg) {
+		// before reg is overwritten, entries that still read it get a copy in their own slot
+		for(int p = 0; p < depth; p++)
+			if(kind[p] == REG && value[p] == reg && reg != this.slot(p))
+				this.materialize(p);
+	}
+
+	private boolean reads(int reg, int below) {
+		for(int p = 0; p < below; p++)
+			if(kind[p] == REG && value[p] == reg)
+				return true;
+		return false;
+	}
+
+	void store(int reg) {
+		// pops the top entry into reg, taking over the destination of the instruction that produced it
+		int p = depth - 1;
+		boolean untouched = (lastEnd == len && kind[p] == REG && value[p] == this.slot(p));
+		if(untouched && !this.reads(reg, p)) {
+			out[lastDst] = reg;
+		}
+		else {
+			this.spill(reg);
+			this.move(reg, p);
+		}
+		depth--;
+		lastEnd = -1;
+	}
+
+	void produced(int dstOperand) {
+		lastDst = dstOperand;
+		lastEnd = len;
+	}
+
+	void incremented() {
+		iincEnd = len;
+	}
+
+	boolean endsWithIinc() {
+		return iincEnd == len && len >= 3;
+	}
+
+	private void materialize(int p) {
+		int slot = this.slot(p);
+		if(kind[p] == REG && value[p] == slot)
+			return;
+		this.move(slot, p);
+		kind[p] = REG;
+		value[p] = slot;
+	}
+
+	private void move(int dst, int p) {
+		switch (kind[p]) {
+		case CONST:
+			this.emit(Bytecode.R_CONST);
+			break;
+		case ACONST:
+			this.emit(Bytecode.R_ACONST);
+			break;
+		default:
+			this.emit(Bytecode.R_MOV);
+			break;
+		}
+		this.emit(dst);
+		this.emit(value[p]);
+	}
+}
@@ -0,0 +1,28 @@
+package net.indiespot.script.interp;
+
+public abstract class ScheduledTask implements Runnable {
+	// intrusive links, a task is in at most one list of one scheduler
+	ScheduledTask prev;
+	ScheduledTask next;
+	TaskList list;
+	Scheduler scheduler;
+	long deadline;
+	int level;
+	// the shard of a ParallelScheduler whose inbox receives the messages for this task
+	volatile Scheduler home;
+
+	public boolean isScheduled() {
+		return list != null;
+	}
+
+	static ScheduledTask wrap(final Runnable task) {
+		if(task instanceof ScheduledTask)
+			return (ScheduledTask) task;
+		return new ScheduledTask() {
+			@Override
+			public void run() {
+				task.run();
+			}
+		};
+	}
+}
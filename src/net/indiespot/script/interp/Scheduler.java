@@ -1,27 +1,19 @@
 package net.indiespot.script.interp;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.PriorityQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 
 public class Scheduler {
-	private static ExecFrame root(ExecFrame frame) {
-		if(frame.callsite == null)
-			throw new IllegalStateException();
-		while (frame.callsite.callsite != null)
-			frame = frame.callsite;
-		return frame;
-	}
-
-	//
-
 	public static void yield() {
 		throw new UnsupportedOperationException();
 	}
 
-	static void signalYield(ExecFrame frame) {
-		thread_local.get().executeLater(root(frame), 0);
+	static void signalYield(Fiber fiber) {
+		current(fiber).executeLater(fiber, 0);
 	}
 
 	//
@@ -30,8 +22,8 @@ public class Scheduler {
 		throw new UnsupportedOperationException();
 	}
 
-	static void signalSleep(ExecFrame frame, int millis) {
-		thread_local.get().executeLater(root(frame), millis);
+	static void signalSleep(Fiber fiber, int millis) {
+		current(fiber).executeLater(fiber, millis);
 	}
 
 	//
@@ -40,36 +32,84 @@ public class Scheduler {
 		throw new UnsupportedOperationException();
 	}
 
-	static void signalSuspend(ExecFrame frame) {
-		// no-op
+	static void signalSuspend(Fiber fiber) {
+		Scheduler scheduler = current(fiber);
+		// a wake that arrived while the fiber was still running is not lost
+		if(fiber.wakePermit) {
+			fiber.wakePermit = false;
+			scheduler.executeLater(fiber, 0);
+		}
+		else {
+			fiber.suspended = true;
+		}
+	}
+
+	static void signalAwait(final Fiber fiber, CompletableFuture<?> future) {
+		final Scheduler scheduler = current(fiber);
+		signalSuspend(fiber);
+		if(!fiber.suspended)
+			return;
+
+		// the completion only wakes the fiber from this await, not from a later suspend
+		final int sequence = fiber.awaitSequence;
+		future.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object result, Throwable failure) {
+				scheduler.inbox.post(Inbox.AWAITED, fiber, sequence);
+			}
+		});
+	}
+
+	public static void suspend(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	static void signalSuspend(Fiber fiber, Object key) {
+		if(key == null)
+			throw new NullPointerException("key");
+		Scheduler scheduler = current(fiber);
+		if(fiber.wakePermit) {
+			fiber.wakePermit = false;
+			scheduler.executeLater(fiber, 0);
+		}
+		else {
+			scheduler.await(fiber, key);
+		}
+	}
+
+	private static Scheduler current(Fiber fiber) {
+		// fibers of EnvMethod.invokeNow have no scheduler to return to
+		if(fiber.synchronous)
+			throw new IllegalStateException("fiber of invokeNow cannot yield, sleep or suspend");
+		return thread_local.get();
 	}
 
 	//
 
 	public void start(ExecFrame frame) {
-		this.executeLater(frame, 0);
+		this.executeLater(frame.fiber, 0);
 	}
 
-	static void signalResume(ExecFrame frame) {
-		thread_local.get().executeLater(root(frame), 0);
+	static void signalResume(Fiber fiber) {
+		thread_local.get().executeLater(fiber, 0);
 	}
 
-	static void signalTerminated(ExecFrame callsite) {
-		if(callsite.terminationHandler != null) {
-			callsite.terminationHandler.onTermination(callsite);
+	static void signalTerminated(Fiber fiber) {
+		if(fiber.terminationHandler != null) {
+			fiber.terminationHandler.onTermination(fiber.root);
 		}
 	}
 
 	public static void echo(Object msg) {
-		throw new UnsupportedOperationException();
+		signalEcho(null, msg);
 	}
 
 	public static void echo(int msg) {
-		throw new UnsupportedOperationException();
+		signalEcho(null, msg);
 	}
 
 	public static void echo(float msg) {
-		throw new UnsupportedOperationException();
+		signalEcho(null, msg);
 	}
 
 	static void signalEcho(ExecFrame frame, Object msg) {
@@ -82,86 +122,323 @@ public class Scheduler {
 	 * 
 	 */
 
-	private final TimeSortedQueue<Runnable> eventQueue;
-	private final List<Runnable> execBatch;
+	private final Clock clock;
+	private final TimingWheel timers;
+	private final Inbox inbox;
+	private final Map<Object, TaskList> waiters;
+	private TaskList runQueue;
+	private TaskList execBatch;
+	private boolean fastForward;
 
 	public Scheduler() {
-		eventQueue = new TimeSortedQueue<>();
-		execBatch = new ArrayList<>();
+		this(Clock.SYSTEM);
 	}
 
-	private static long time() {
-		return System.currentTimeMillis();
+	public Scheduler(Clock clock) {
+		this.clock = clock;
+		timers = new TimingWheel(clock.millis());
+		inbox = new Inbox();
+		waiters = new HashMap<>();
+		runQueue = new TaskList();
+		execBatch = new TaskList();
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	long time() {
+		return clock.millis();
+	}
+
+	public void setFastForward(boolean enabled) {
+		// jumps a virtual clock to the next deadline whenever nothing is runnable
+		if(enabled && !(clock instanceof VirtualClock))
+			throw new IllegalStateException("fast-forward requires a VirtualClock");
+		this.fastForward = enabled;
+	}
+
+	boolean isIdle() {
+		return runQueue.isEmpty() && execBatch.isEmpty() && inbox.isEmpty();
+	}
+
+	long nextDeadline() {
+		return timers.nextDeadline();
 	}
 
 	public void tick() {
-		long now = time();
+		this.tick(Long.MAX_VALUE);
+	}
 
-		for(Runnable task; (task = eventQueue.poll(now)) != null;) {
-			execBatch.add(task);
+	public int tick(long budgetNanos) {
+		// returns the number of due tasks deferred to the next tick
+		if(fastForward && this.isIdle() && timers.size() != 0)
+			((VirtualClock) clock).advanceTo(this.nextDeadline());
+		TaskList batch = this.beginTick(this.time());
+		boolean bounded = (budgetNanos != Long.MAX_VALUE);
+		long deadline = bounded ? System.nanoTime() + budgetNanos : 0L;
+
+		bind(this);
+		try {
+			for(ScheduledTask task; (task = batch.poll()) != null;) {
+				task.run();
+				if(bounded && System.nanoTime() - deadline >= 0L)
+					break;
+			}
+		}
+		finally {
+			bind(null);
 		}
+		return batch.size();
+	}
+
+	// idle waiting
+
+	public void awaitNextDeadline() {
+		// parks until the earliest timer expires or work is submitted from another thread
+		if(!this.isIdle())
+			return;
+		// a tick or virtual clock only moves when the host advances it, there is no wall time to sleep for
+		if(timers.size() != 0 && !clock.isWallBased())
+			return;
 
-		thread_local.set(this);
-		{
-			for(int i = 0, len = execBatch.size(); i < len; i++)
-				execBatch.get(i).run();
-			execBatch.clear();
+		inbox.waiter = Thread.currentThread();
+		try {
+			if(inbox.isEmpty())
+				park(timers.size() == 0 ? Long.MAX_VALUE : this.nextDeadline() - this.time());
+		}
+		finally {
+			inbox.waiter = null;
 		}
-		thread_local.set(null);
 	}
 
-	public void executeLater(Runnable task, int delay) {
-		this.executeAt(task, time() + delay);
+	public void runUntil(BooleanSupplier condition) {
+		while (!condition.getAsBoolean()) {
+			this.tick();
+			if(condition.getAsBoolean())
+				break;
+			this.awaitNextDeadline();
+		}
 	}
 
-	public void executeAt(Runnable task, long time) {
-		eventQueue.insert(time, task);
+	public void wakeup() {
+		inbox.wakeup();
+	}
+
+	Inbox inbox() {
+		return inbox;
+	}
+
+	static void park(long millis) {
+		if(millis == Long.MAX_VALUE)
+			LockSupport.park();
+		else if(millis > 0L)
+			LockSupport.parkNanos(millis * 1000000L);
+	}
+
+	TaskList beginTick(long now) {
+		this.drainInbox();
+		timers.advance(now, runQueue);
+
+		// tasks scheduled while the batch runs end up in the next batch,
+		// tasks deferred by the previous tick run before anything new
+		if(execBatch.isEmpty()) {
+			TaskList batch = runQueue;
+			runQueue = execBatch;
+			execBatch = batch;
+		}
+		else {
+			for(ScheduledTask task; (task = runQueue.poll()) != null;)
+				execBatch.add(task);
+		}
+		return execBatch;
+	}
+
+	void defer(ScheduledTask task) {
+		// runs first in the next batch, see beginTick
+		execBatch.add(task);
 	}
-}
 
-class TimeSortedQueue<T> {
-	private final PriorityQueue<Slot<T>> queue;
+	static void bind(Scheduler scheduler) {
+		thread_local.set(scheduler);
+	}
 
-	public TimeSortedQueue() {
-		queue = new PriorityQueue<Slot<T>>(11, new TimeSlotComparator<T>());
+	public ScheduledTask executeLater(Runnable task, int delay) {
+		ScheduledTask scheduled = ScheduledTask.wrap(task);
+		this.unlink(scheduled);
+		scheduled.scheduler = this;
+		if(delay <= 0)
+			runQueue.add(scheduled);
+		else
+			timers.insert(scheduled, this.time() + delay, runQueue);
+		return scheduled;
 	}
 
-	public int size() {
-		return queue.size();
+	public ScheduledTask executeAt(Runnable task, long time) {
+		ScheduledTask scheduled = ScheduledTask.wrap(task);
+		this.unlink(scheduled);
+		scheduled.scheduler = this;
+		timers.insert(scheduled, time, runQueue);
+		return scheduled;
 	}
 
-	public void clear() {
-		queue.clear();
+	public boolean cancel(ScheduledTask task) {
+		if(!task.isScheduled())
+			return false;
+		this.unlink(task);
+		return true;
 	}
 
-	public void insert(long time, T item) {
-		queue.add(new Slot<T>(time, item));
+	// event keys
+
+	void await(Fiber fiber, Object key) {
+		TaskList list = waiters.get(key);
+		if(list == null)
+			waiters.put(key, list = new TaskList());
+		fiber.suspended = true;
+		fiber.waitKey = key;
+		fiber.scheduler = this;
+		list.add(fiber);
 	}
 
-	public T poll(long now) {
-		Slot<T> peeked = queue.peek();
-		if(peeked == null || peeked.time > now)
-			return null;
-		return queue.poll().item;
+	public int signal(Object key) {
+		// wakes the fiber that has waited longest on the key
+		return this.signal(key, 1);
 	}
 
-	// --
+	public int signalAll(Object key) {
+		return this.signal(key, Integer.MAX_VALUE);
+	}
+
+	public int waiting(Object key) {
+		TaskList list = waiters.get(key);
+		return (list == null) ? 0 : list.size();
+	}
 
-	private static class TimeSlotComparator<T> implements Comparator<Slot<T>> {
-		@Override
-		public int compare(Slot<T> o1, Slot<T> o2) {
-			int cmp = Long.signum(o1.time - o2.time);
-			return (cmp == 0) ? -1 : cmp;
+	private int signal(Object key, int max) {
+		TaskList list = waiters.get(key);
+		if(list == null)
+			return 0;
+
+		int woken = 0;
+		for(ScheduledTask task; woken < max && (task = list.poll()) != null; woken++) {
+			Fiber fiber = (Fiber) task;
+			fiber.waitKey = null;
+			fiber.suspended = false;
+			this.executeLater(fiber, 0);
 		}
+		if(list.isEmpty())
+			waiters.remove(key);
+		return woken;
 	}
 
-	private static class Slot<Q> {
-		private final long time;
-		private final Q item;
+	private void stopWaiting(Fiber fiber) {
+		TaskList list = fiber.list;
+		list.remove(fiber);
+		if(list.isEmpty())
+			waiters.remove(fiber.waitKey);
+		fiber.waitKey = null;
+	}
+
+	// thread-safe submission, applied at the start of the next tick
 
-		public Slot(long time, Q item) {
-			this.time = time;
-			this.item = item;
+	public <T> FiberFuture<T> spawn(EnvMethod envMethod, Object... args) {
+		// the future completes on the scheduler thread as the fiber terminates
+		FiberFuture<T> future = new FiberFuture<>(this, envMethod, args);
+		this.submit(future.frame());
+		return future;
+	}
+
+	public void submit(ExecFrame frame) {
+		inbox.post(Inbox.START, frame.fiber, 0);
+	}
+
+	public ScheduledTask submit(Runnable task, int delay) {
+		ScheduledTask scheduled = ScheduledTask.wrap(task);
+		inbox.post(Inbox.START, scheduled, delay);
+		return scheduled;
+	}
+
+	public void submitWake(ExecFrame frame) {
+		inbox.post(Inbox.WAKE, frame.fiber, 0);
+	}
+
+	public void submitCancel(ExecFrame frame) {
+		inbox.post(Inbox.CANCEL, frame.fiber, 0);
+	}
+
+	public void submitCancel(ScheduledTask task) {
+		inbox.post(Inbox.CANCEL, task, 0);
+	}
+
+	public void submitSignal(Object key) {
+		inbox.post(Inbox.SIGNAL, key);
+	}
+
+	public void submitSignalAll(Object key) {
+		inbox.post(Inbox.SIGNAL_ALL, key);
+	}
+
+	private void drainInbox() {
+		if(inbox.isEmpty())
+			return;
+
+		for(Inbox.Message message = inbox.drain(); message != null; message = message.next) {
+			ScheduledTask task = message.task;
+			switch (message.kind) {
+			case Inbox.START:
+				this.executeLater(task, message.delay);
+				break;
+			case Inbox.WAKE:
+				this.wake((Fiber) task);
+				break;
+			case Inbox.AWAITED:
+				if(((Fiber) task).awaitSequence == message.delay)
+					this.wake((Fiber) task);
+				break;
+			case Inbox.CANCEL:
+				if(task instanceof Fiber) {
+					Fiber fiber = (Fiber) task;
+					fiber.cancelled = true;
+					if(fiber.future != null)
+						fiber.future.completeCancelled();
+				}
+				this.cancel(task);
+				break;
+			case Inbox.SIGNAL:
+				this.signal(message.key);
+				break;
+			case Inbox.SIGNAL_ALL:
+				this.signalAll(message.key);
+				break;
+			}
 		}
 	}
+
+	private void wake(Fiber fiber) {
+		if(fiber.cancelled)
+			return;
+		// any wake ends the current await
+		fiber.awaitSequence++;
+		if(fiber.suspended) {
+			fiber.suspended = false;
+			this.executeLater(fiber, 0);
+		}
+		else {
+			fiber.wakePermit = true;
+		}
+	}
+
+	private void unlink(ScheduledTask task) {
+		// the task may still be queued in the scheduler it last ran on
+		Scheduler owner = task.scheduler;
+		if(task.list == null)
+			return;
+		if(task.list == owner.runQueue || task.list == owner.execBatch)
+			task.list.remove(task);
+		else if(task instanceof Fiber && ((Fiber) task).waitKey != null)
+			owner.stopWaiting((Fiber) task);
+		else
+			owner.timers.remove(task);
+	}
 }
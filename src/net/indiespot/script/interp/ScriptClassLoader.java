@@ -0,0 +1,29 @@
+package net.indiespot.script.interp;
+
+class ScriptClassLoader extends ClassLoader {
+	private final Env env;
+
+	ScriptClassLoader(Env env) {
+		super(Env.class.getClassLoader());
+		this.env = env;
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		// registered script classes are defined here, even if the parent can see them
+		synchronized (this.getClassLoadingLock(name)) {
+			Class<?> clazz = this.findLoadedClass(name);
+			if(clazz == null) {
+				EnvClass envClass = env.findClass(name);
+				if(envClass == null)
+					return super.loadClass(name, resolve);
+
+				byte[] raw = env.classBytes(envClass);
+				clazz = this.defineClass(name, raw, 0, raw.length);
+			}
+			if(resolve)
+				this.resolveClass(clazz);
+			return clazz;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package net.indiespot.script.interp;
+
+public final class SlicePolicy {
+	public static final SlicePolicy DEFAULT = fuel(1000);
+
+	// fuel handed to the interpreter between clock reads in nanosecond mode
+	private static final int NANOS_FUEL_CHUNK = 256;
+
+	final int fuel;
+	final long nanos;
+
+	private SlicePolicy(int fuel, long nanos) {
+		this.fuel = fuel;
+		this.nanos = nanos;
+	}
+
+	public static SlicePolicy fuel(int fuel) {
+		if(fuel <= 0)
+			throw new IllegalArgumentException("fuel: " + fuel);
+		return new SlicePolicy(fuel, 0L);
+	}
+
+	public static SlicePolicy nanos(long nanos) {
+		if(nanos <= 0L)
+			throw new IllegalArgumentException("nanos: " + nanos);
+		return new SlicePolicy(NANOS_FUEL_CHUNK, nanos);
+	}
+
+	Interpreter.ExecState run(Fiber fiber) {
+		if(nanos == 0L)
+			return Interpreter.run(fiber, fuel);
+
+		long deadline = System.nanoTime() + nanos;
+		Interpreter.ExecState state;
+		do {
+			state = Interpreter.run(fiber, fuel);
+		}
+		while (state == Interpreter.ExecState.RUNNING && System.nanoTime() - deadline < 0L);
+		return state;
+	}
+
+	@Override
+	public String toString() {
+		return (nanos == 0L) ? "fuel(" + fuel + ")" : "nanos(" + nanos + ")";
+	}
+}
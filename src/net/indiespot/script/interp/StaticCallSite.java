@@ -0,0 +1,71 @@
+package net.indiespot.script.interp;
+
+import java.lang.invoke.MethodHandle;
+import java.util.NoSuchElementException;
+
+import org.objectweb.asm.tree.MethodInsnNode;
+
+class StaticCallSite {
+	final Env env;
+	final String owner;
+	final String name;
+	final String desc;
+	private volatile Link link;
+
+	StaticCallSite(Env env, MethodInsnNode invoke) {
+		this.env = env;
+		this.owner = invoke.owner;
+		this.name = invoke.name;
+		this.desc = invoke.desc;
+	}
+
+	EnvMethod target() {
+		return this.linked().target;
+	}
+
+	boolean invokeNative(ExecFrame frame) {
+		// false if the target is interpreted
+		Link linked = this.linked();
+		if(linked.nativeTarget == null)
+			return false;
+		linked.nativeInvoker.invoke(frame, linked.nativeTarget);
+		return true;
+	}
+
+	void unlink() {
+		link = null;
+	}
+
+	private Link linked() {
+		Link linked = link;
+		if(linked == null)
+			link = linked = this.link();
+		return linked;
+	}
+
+	private Link link() {
+		// linked on first execution, the owner may be registered after the caller
+		EnvClass envClass = env.findClass(owner);
+		if(envClass == null)
+			throw new NoSuchElementException("class: " + owner);
+		EnvMethod method = envClass.findMethod(name, desc);
+
+		MethodHandle handle = env.nativeHandle(method);
+		if(handle == null)
+			return new Link(method, null, null);
+		HostInvoker invoker = new HostInvoker(desc, false);
+		return new Link(method, invoker.adapt(handle), invoker);
+	}
+
+	private static final class Link {
+		final EnvMethod target;
+		final MethodHandle nativeTarget;
+		final HostInvoker nativeInvoker;
+
+		Link(EnvMethod target, MethodHandle nativeTarget, HostInvoker nativeInvoker) {
+			this.target = target;
+			this.nativeTarget = nativeTarget;
+			this.nativeInvoker = nativeInvoker;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package net.indiespot.script.interp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.Opcodes;
+
+class Superinstructions {
+	// the fused opcode followed by the JVM sequence it replaces, int constants of any form match ICONST
+	private static final int[][] CATALOGUE = {
+			{ Bytecode.IADD_CONST, Opcodes.ILOAD, Bytecode.ICONST, Opcodes.IADD, Opcodes.ISTORE },
+			{ Bytecode.IADD_CONST, Opcodes.ILOAD, Bytecode.ICONST, Opcodes.ISUB, Opcodes.ISTORE },
+			{ Bytecode.ILOAD_ILOAD_IF_ICMPEQ, Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IF_ICMPEQ },
+			{ Bytecode.ILOAD_ILOAD_IF_ICMPNE, Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IF_ICMPNE },
+			{ Bytecode.ILOAD_ILOAD_IF_ICMPLT, Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IF_ICMPLT },
+			{ Bytecode.ILOAD_ILOAD_IF_ICMPGE, Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IF_ICMPGE },
+			{ Bytecode.ILOAD_ILOAD_IF_ICMPGT, Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IF_ICMPGT },
+			{ Bytecode.ILOAD_ILOAD_IF_ICMPLE, Opcodes.ILOAD, Opcodes.ILOAD, Opcodes.IF_ICMPLE },
+			{ Bytecode.IINC_GOTO, Opcodes.IINC, Opcodes.GOTO },
+			{ Bytecode.ALOAD_INVOKEVIRTUAL, Opcodes.ALOAD, Opcodes.INVOKEVIRTUAL },
+			{ Bytecode.ALOAD_INVOKEVIRTUAL, Opcodes.ALOAD, Opcodes.INVOKEINTERFACE },
+	};
+
+	static final int MAX_LENGTH = 4;
+
+	static final Superinstructions ALL = new Superinstructions(CATALOGUE);
+
+	private final int[][] table;
+
+	private Superinstructions(int[][] table) {
+		this.table = table;
+	}
+
+	static Superinstructions select(List<int[]> pairs) {
+		// a sequence is fused when each of its adjacent pairs is among the given ones
+		List<int[]> rows = new ArrayList<>();
+		for(int[] row : CATALOGUE) {
+			boolean frequent = true;
+			for(int k = 1; frequent && k < row.length - 1; k++)
+				frequent = contains(pairs, row[k], row[k + 1]);
+			if(frequent)
+				rows.add(row);
+		}
+		return new Superinstructions(rows.toArray(new int[rows.size()][]));
+	}
+
+	private static boolean contains(List<int[]> pairs, int first, int second) {
+		for(int[] pair : pairs)
+			if(pair[0] == first && pair[1] == second)
+				return true;
+		return false;
+	}
+
+	int[] match(int[] ops, int count) {
+		// longest row first, rows are matched against a window that never crosses a jump target
+		int[] best = null;
+		for(int[] row : table) {
+			int length = row.length - 1;
+			if(length > count || (best != null && length <= best.length - 1))
+				continue;
+			boolean matches = true;
+			for(int k = 0; matches && k < length; k++)
+				matches = (row[k + 1] == ops[k]);
+			if(matches)
+				best = row;
+		}
+		return best;
+	}
+}
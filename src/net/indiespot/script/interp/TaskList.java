@@ -0,0 +1,58 @@
+package net.indiespot.script.interp;
+
+class TaskList {
+	private ScheduledTask head, tail;
+	private int size;
+
+	public boolean isEmpty() {
+		return head == null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(ScheduledTask task) {
+		size++;
+		task.list = this;
+		task.prev = tail;
+		task.next = null;
+		if(tail == null)
+			head = task;
+		else
+			tail.next = task;
+		tail = task;
+	}
+
+	public ScheduledTask peek() {
+		return head;
+	}
+
+	public ScheduledTask detach() {
+		ScheduledTask task = head;
+		head = tail = null;
+		size = 0;
+		return task;
+	}
+
+	public ScheduledTask poll() {
+		ScheduledTask task = head;
+		if(task != null)
+			this.remove(task);
+		return task;
+	}
+
+	public void remove(ScheduledTask task) {
+		size--;
+		if(task.prev == null)
+			head = task.next;
+		else
+			task.prev.next = task.next;
+		if(task.next == null)
+			tail = task.prev;
+		else
+			task.next.prev = task.prev;
+		task.prev = task.next = null;
+		task.list = null;
+	}
+}
@@ -3,6 +3,8 @@ package net.indiespot.script.interp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.tree.ClassNode;
@@ -76,16 +78,73 @@ public class TestExec {
 			scheduler.start(execFrame);
 		}
 
+		{
+			// a cancel submitted right after the task is applied after its start
+			ParallelScheduler parallel = new ParallelScheduler(4);
+			final AtomicInteger runs = new AtomicInteger();
+			for(int i = 0; i < 100; i++) {
+				ScheduledTask task = parallel.submit(new Runnable() {
+					@Override
+					public void run() {
+						runs.incrementAndGet();
+					}
+				}, 0);
+				parallel.submitCancel(task);
+			}
+			parallel.tick();
+			parallel.shutdown();
+			System.out.println("cancelled:" + runs.get());
+		}
+
+		{
+			// a fiber cancelled through its scheduler completes its future
+			Scheduler spawner = new Scheduler();
+			FiberFuture<Object> future = spawner.spawn(clazz.findMethod("bus3", "(Ljava/lang/Object;)V"), new Object());
+			spawner.tick();
+			spawner.submitCancel(future.frame());
+			spawner.tick();
+			try {
+				future.join();
+				System.out.println("join:completed");
+			}
+			catch (CancellationException e) {
+				System.out.println("join:cancelled");
+			}
+		}
+
+		{
+			// a fiber prepared before the env is trusted runs untagged once it reaches register code
+			ClassNode stackNode = new ClassNode();
+			new ClassReader(TestExec.class.getResourceAsStream("/net/indiespot/script/interp/TestScript.class")).accept(stackNode, 0);
+			stackNode.name = "net/indiespot/script/interp/TestScriptStack";
+
+			Env tiered = new Env();
+			tiered.register(stackNode);
+			EnvMethod envMethod = tiered.findClass("net.indiespot.script.interp.TestScriptStack").findMethod("mean", "(FF)F");
+			ExecFrame execFrame = envMethod.prepare(new TerminationHandler() {
+				@Override
+				public void onTermination(ExecFrame callsite) {
+					System.out.println("mean:" + callsite.popFloat());
+				}
+			});
+			execFrame.setFloat(0, 3.0f);
+			execFrame.setFloat(1, 4.0f);
+
+			ClassNode registerNode = new ClassNode();
+			new ClassReader(TestExec.class.getResourceAsStream("/net/indiespot/script/interp/TestScript.class")).accept(registerNode, 0);
+			tiered.setTrustedExecution(true);
+			tiered.setRegisterExecution(true);
+			tiered.register(registerNode);
+
+			Scheduler tieredScheduler = new Scheduler();
+			tieredScheduler.start(execFrame);
+			tieredScheduler.tick();
+		}
+
 		if(Math.random() < 10000) {
 			while (true) {
 				scheduler.tick();
-
-				try {
-					Thread.sleep(100);
-				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				scheduler.awaitNextDeadline();
 			}
 		}
 	}
@@ -34,6 +34,14 @@ public class TestScript {
 		return count;
 	}
 
+	public static float half(float a) {
+		return a / 2;
+	}
+
+	public static float mean(float a, float b) {
+		return half(a + b);
+	}
+
 	public static int bus(Object txt) {
 		return (txt == null) ? -1 : bus2(-3, txt, 0.0f, 0);
 	}
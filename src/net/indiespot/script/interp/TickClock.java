@@ -0,0 +1,25 @@
+package net.indiespot.script.interp;
+
+public class TickClock implements Clock {
+	private final int millisPerTick;
+	private volatile long ticks;
+
+	public TickClock(int millisPerTick) {
+		if(millisPerTick <= 0)
+			throw new IllegalArgumentException("millisPerTick: " + millisPerTick);
+		this.millisPerTick = millisPerTick;
+	}
+
+	@Override
+	public long millis() {
+		return ticks * millisPerTick;
+	}
+
+	public long ticks() {
+		return ticks;
+	}
+
+	public void tick() {
+		ticks++;
+	}
+}
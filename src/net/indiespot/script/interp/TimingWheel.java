@@ -0,0 +1,138 @@
+package net.indiespot.script.interp;
+
+class TimingWheel {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long SPAN = 1L << (BITS * LEVELS);
+
+	private final TaskList[][] wheels;
+	private final TaskList overflow;
+	private final int[] levelSizes = new int[LEVELS];
+	private long currentTick;
+	private int size;
+
+	public TimingWheel(long now) {
+		wheels = new TaskList[LEVELS][SLOTS];
+		for(int level = 0; level < LEVELS; level++)
+			for(int slot = 0; slot < SLOTS; slot++)
+				wheels[level][slot] = new TaskList();
+		overflow = new TaskList();
+		currentTick = now;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void insert(ScheduledTask task, long deadline, TaskList due) {
+		task.deadline = deadline;
+		long delta = deadline - currentTick;
+		if(delta <= 0) {
+			due.add(task);
+			return;
+		}
+
+		size++;
+		if(delta >= SPAN) {
+			task.level = LEVELS;
+			overflow.add(task);
+			return;
+		}
+		int level = 0;
+		while (delta >= (1L << (BITS * (level + 1))))
+			level++;
+		task.level = level;
+		levelSizes[level]++;
+		wheels[level][(int) (deadline >>> (BITS * level)) & MASK].add(task);
+	}
+
+	public void remove(ScheduledTask task) {
+		task.list.remove(task);
+		size--;
+		if(task.level < LEVELS)
+			levelSizes[task.level]--;
+	}
+
+	public long nextDeadline() {
+		// exact, but scans the buckets: meant for idle schedulers
+		if(size == 0)
+			return Long.MAX_VALUE;
+
+		// a task still waiting to cascade from a higher level can be due before any in the lowest wheel
+		long next = earliest(overflow, Long.MAX_VALUE);
+		if(levelSizes[0] != 0) {
+			for(int i = 1; i <= SLOTS; i++) {
+				ScheduledTask task = wheels[0][(int) (currentTick + i) & MASK].peek();
+				if(task != null) {
+					next = Math.min(next, task.deadline);
+					break;
+				}
+			}
+		}
+
+		for(int level = 1; level < LEVELS; level++) {
+			if(levelSizes[level] == 0)
+				continue;
+			// the first non-empty bucket after the current position holds the earliest deadlines
+			int current = (int) (currentTick >>> (BITS * level)) & MASK;
+			for(int i = 1; i <= SLOTS; i++) {
+				TaskList bucket = wheels[level][(current + i) & MASK];
+				if(!bucket.isEmpty()) {
+					next = earliest(bucket, next);
+					break;
+				}
+			}
+		}
+		return next;
+	}
+
+	private static long earliest(TaskList bucket, long next) {
+		for(ScheduledTask task = bucket.peek(); task != null; task = task.next)
+			next = Math.min(next, task.deadline);
+		return next;
+	}
+
+	public void advance(long now, TaskList due) {
+		// moves every task with deadline <= now to the due list
+		while (currentTick < now) {
+			if(size == 0) {
+				currentTick = now;
+				break;
+			}
+			if(levelSizes[0] == 0 && (currentTick & MASK) != MASK) {
+				// nothing in the lowest wheel, skip to the tick before the next cascade
+				currentTick = Math.min(currentTick | MASK, now);
+				continue;
+			}
+
+			long tick = ++currentTick;
+			if((tick & MASK) == 0) {
+				if((tick & (SPAN - 1)) == 0)
+					this.cascade(overflow, due);
+				for(int level = LEVELS - 1; level > 0; level--)
+					if((tick & ((1L << (BITS * level)) - 1)) == 0)
+						this.cascade(wheels[level][(int) (tick >>> (BITS * level)) & MASK], due);
+			}
+
+			TaskList bucket = wheels[0][(int) tick & MASK];
+			for(ScheduledTask task; (task = bucket.poll()) != null;) {
+				size--;
+				levelSizes[0]--;
+				due.add(task);
+			}
+		}
+	}
+
+	private void cascade(TaskList bucket, TaskList due) {
+		// detached first, far tasks may land in the same bucket again
+		for(ScheduledTask task = bucket.detach(), next; task != null; task = next) {
+			next = task.next;
+			size--;
+			if(task.level < LEVELS)
+				levelSizes[task.level]--;
+			this.insert(task, task.deadline, due);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package net.indiespot.script.interp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.CompletionStage;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodInsnNode;
+
+class VirtualCallSite {
+	private static final int POLYMORPHIC_LIMIT = 4;
+
+	final String owner;
+	final String name;
+	final String desc;
+	final boolean async;
+	private final HostInvoker invoker;
+
+	private volatile Class<?> ownerClass;
+	private volatile MethodHandle megamorphic;
+	private volatile CacheEntry cache;
+
+	VirtualCallSite(MethodInsnNode invoke) {
+		this.owner = invoke.owner;
+		this.name = invoke.name;
+		this.desc = invoke.desc;
+		this.invoker = new HostInvoker(desc, true);
+		this.async = isAsync(desc);
+	}
+
+	static boolean isAsync(String desc) {
+		// host methods returning a CompletionStage park the calling fiber until it completes
+		Type type = Type.getReturnType(desc);
+		if(type.getSort() != Type.OBJECT)
+			return false;
+		try {
+			return CompletionStage.class.isAssignableFrom(Class.forName(type.getClassName(), false, VirtualCallSite.class.getClassLoader()));
+		}
+		catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	void invoke(ExecFrame frame) {
+		Object target = frame.peekRef(invoker.paramTypes.length);
+		if(target == null)
+			throw new NullPointerException(owner + "." + name);
+
+		invoker.invoke(frame, this.lookup(target.getClass()));
+	}
+
+	// inline cache
+
+	private MethodHandle lookup(Class<?> clazz) {
+		CacheEntry head = cache;
+		for(CacheEntry entry = head; entry != null; entry = entry.next)
+			if(entry.clazz == clazz)
+				return entry.handle;
+
+		if(head != null && head.size == POLYMORPHIC_LIMIT) {
+			MethodHandle handle = megamorphic;
+			if(handle == null)
+				megamorphic = handle = this.resolve(this.ownerClass());
+			return handle;
+		}
+
+		MethodHandle handle = this.resolve(Modifier.isPublic(clazz.getModifiers()) ? clazz : this.ownerClass());
+		cache = new CacheEntry(clazz, handle, head);
+		return handle;
+	}
+
+	private Class<?> ownerClass() {
+		Class<?> clazz = ownerClass;
+		if(clazz == null) {
+			try {
+				ownerClass = clazz = Class.forName(owner.replace('/', '.'));
+			}
+			catch (ClassNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return clazz;
+	}
+
+	private MethodHandle resolve(Class<?> clazz) {
+		MethodHandle handle;
+		try {
+			MethodType type = MethodType.fromMethodDescriptorString(desc, this.ownerClass().getClassLoader());
+			handle = MethodHandles.publicLookup().findVirtual(clazz, name, type);
+		}
+		catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalStateException(owner + "." + name + desc, e);
+		}
+
+		return invoker.adapt(handle);
+	}
+
+	private static class CacheEntry {
+		final Class<?> clazz;
+		final MethodHandle handle;
+		final CacheEntry next;
+		final int size;
+
+		CacheEntry(Class<?> clazz, MethodHandle handle, CacheEntry next) {
+			this.clazz = clazz;
+			this.handle = handle;
+			this.next = next;
+			this.size = (next == null) ? 1 : next.size + 1;
+		}
+	}
+}
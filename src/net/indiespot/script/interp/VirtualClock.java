@@ -0,0 +1,30 @@
+package net.indiespot.script.interp;
+
+public class VirtualClock implements Clock {
+	private volatile long now;
+
+	public VirtualClock() {
+		this(0L);
+	}
+
+	public VirtualClock(long now) {
+		this.now = now;
+	}
+
+	@Override
+	public long millis() {
+		return now;
+	}
+
+	public void advance(long millis) {
+		if(millis < 0L)
+			throw new IllegalArgumentException("millis: " + millis);
+		now += millis;
+	}
+
+	public void advanceTo(long time) {
+		// virtual time never goes back
+		if(time > now)
+			now = time;
+	}
+}